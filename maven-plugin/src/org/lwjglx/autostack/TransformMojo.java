@@ -0,0 +1,199 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+/**
+ * Transforms the compiled classes of a project in place, so that neither the Java Agent nor a separate jar
+ * transformation step is needed.
+ * <p>
+ * Only the classes which changed since the last build are transformed again.
+ *
+ * @author Kai Burjack
+ */
+@Mojo(name = "transform", defaultPhase = LifecyclePhase.PROCESS_CLASSES, requiresDependencyResolution = ResolutionScope.COMPILE, threadSafe = true)
+public class TransformMojo extends AbstractMojo {
+
+    /**
+     * The directory containing the classes to transform.
+     */
+    @Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+    private File classesDirectory;
+
+    /**
+     * The directory to write all files of the {@link #classesDirectory} to. If not set, the classes are transformed in
+     * place.
+     */
+    @Parameter
+    private File outputDirectory;
+
+    /**
+     * The compile class path of the project, from which the LWJGL classes are read to build the {@link RewriteTable}.
+     */
+    @Parameter(defaultValue = "${project.compileClasspathElements}", readonly = true, required = true)
+    private List<String> classpathElements;
+
+    /**
+     * The file recording the content hashes of the last build.
+     */
+    @Parameter(defaultValue = "${project.build.directory}/autostack.state", required = true)
+    private File stateFile;
+
+    /**
+     * Whether methods should create a new stack frame by default, unless annotated with {@link UseCallerStack}.
+     */
+    @Parameter(property = "autostack.DEFAULT_NEW_STACK", defaultValue = "true")
+    private boolean defaultNewStack;
+
+    @Parameter(property = "autostack.CHECK_STACK", defaultValue = "false")
+    private boolean checkStack;
+
+    @Parameter(property = "autostack.STACK_PARAM", defaultValue = "false")
+    private boolean stackParam;
+
+    /**
+     * Whether to acquire the stack only when a method first allocates, instead of at the beginning of every method.
+     */
+    @Parameter(property = "autostack.LAZY_STACK", defaultValue = "false")
+    private boolean lazyStack;
+
+    /**
+     * Whether to infer the stack lifecycle of methods not declaring it from the escape analysis of their stack memory.
+     */
+    @Parameter(property = "autostack.INFER_STACK", defaultValue = "false")
+    private boolean inferStack;
+
+    /**
+     * Whether to fold the stack frames of private helper methods into the frames of their callers.
+     */
+    @Parameter(property = "autostack.FOLD_FRAMES", defaultValue = "false")
+    private boolean foldFrames;
+
+    /**
+     * Whether to give loop iterations their own stack frame if their stack memory is not used afterwards.
+     */
+    @Parameter(property = "autostack.LOOP_STACK", defaultValue = "false")
+    private boolean loopStack;
+
+    /**
+     * Whether to serve consecutive allocations with constant sizes by a single allocation.
+     */
+    @Parameter(property = "autostack.COALESCE", defaultValue = "false")
+    private boolean coalesce;
+
+    /**
+     * Whether to reuse the stack memory of allocations which are not used anymore.
+     */
+    @Parameter(property = "autostack.REUSE_STACK", defaultValue = "false")
+    private boolean reuseStack;
+
+    @Parameter(property = "autostack.DEBUG_TRANSFORM", defaultValue = "false")
+    private boolean debugTransform;
+
+    @Parameter(property = "autostack.DEBUG_RUNTIME", defaultValue = "false")
+    private boolean debugRuntime;
+
+    @Parameter(property = "autostack.TRACE", defaultValue = "false")
+    private boolean trace;
+
+    /**
+     * Whether to transform the classes on all available processors.
+     */
+    @Parameter(property = "autostack.PARALLEL", defaultValue = "false")
+    private boolean parallel;
+
+    @Parameter(property = "autostack.skip", defaultValue = "false")
+    private boolean skip;
+
+    public void execute() throws MojoExecutionException {
+        if (skip) {
+            getLog().info("Skipping autostack transformation");
+            return;
+        }
+        if (!classesDirectory.isDirectory()) {
+            getLog().info("No classes to transform in " + classesDirectory);
+            return;
+        }
+        Transformer transformer = new Transformer(Collections.<String>emptyList());
+        transformer.setDebugTransform(debugTransform);
+        transformer.setDebugRuntime(debugRuntime);
+        transformer.setTrace(trace);
+        transformer.setDefaultNewStack(defaultNewStack);
+        transformer.setCheckStack(checkStack);
+        transformer.setStackAsParameter(stackParam);
+        transformer.setLazyStack(lazyStack);
+        transformer.setInferStack(inferStack);
+        transformer.setFoldFrames(foldFrames);
+        transformer.setLoopStack(loopStack);
+        transformer.setCoalesce(coalesce);
+        transformer.setReuseStack(reuseStack);
+        URLClassLoader loader = classpathLoader();
+        RewriteTable rewriteTable = new RewriteTable(loader);
+        if (!rewriteTable.isMemoryStackFound())
+            getLog().warn("org.lwjgl.system.MemoryStack not found on the compile class path. Invocations of methods allocating on the thread's stack are not rewritten.");
+        transformer.setRewriteTable(rewriteTable);
+        DirectoryTransformer directoryTransformer = new DirectoryTransformer(transformer, stateFile);
+        directoryTransformer.setDebugTransform(debugTransform);
+        directoryTransformer.setParallel(parallel);
+        try {
+            directoryTransformer.transform(Collections.singletonList(classesDirectory), outputDirectory);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Could not transform classes in " + classesDirectory, e);
+        } catch (RuntimeException e) {
+            throw new MojoExecutionException("Could not transform classes in " + classesDirectory, e);
+        } finally {
+            try {
+                loader.close();
+            } catch (IOException e) {
+                getLog().warn("Could not close class loader of the compile class path", e);
+            }
+        }
+    }
+
+    private URLClassLoader classpathLoader() throws MojoExecutionException {
+        URL[] urls = new URL[classpathElements.size()];
+        for (int i = 0; i < urls.length; i++) {
+            try {
+                urls[i] = new File(classpathElements.get(i)).toURI().toURL();
+            } catch (MalformedURLException e) {
+                throw new MojoExecutionException("Invalid class path element " + classpathElements.get(i), e);
+            }
+        }
+        return new URLClassLoader(urls, null);
+    }
+
+}
@@ -22,9 +22,15 @@
  */
 package org.lwjglx.autostack;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.instrument.Instrumentation;
-import java.util.ArrayList;
-import java.util.List;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
 
 class Agent {
 
@@ -33,6 +39,15 @@ class Agent {
     private static boolean TRACE = getBooleanProperty("autostack.TRACE", false);
     private static boolean CHECK_STACK = getBooleanProperty("autostack.CHECK_STACK", false);
     private static boolean STACK_PARAM = getBooleanProperty("autostack.STACK_PARAM", false);
+    private static boolean LAZY_STACK = getBooleanProperty("autostack.LAZY_STACK", false);
+    private static boolean INFER_STACK = getBooleanProperty("autostack.INFER_STACK", false);
+    private static boolean FOLD_FRAMES = getBooleanProperty("autostack.FOLD_FRAMES", false);
+    private static boolean LOOP_STACK = getBooleanProperty("autostack.LOOP_STACK", false);
+    private static boolean COALESCE = getBooleanProperty("autostack.COALESCE", false);
+    private static boolean REUSE_STACK = getBooleanProperty("autostack.REUSE_STACK", false);
+    private static boolean PRETRANSFORM = getBooleanProperty("autostack.PRETRANSFORM", false);
+    private static String CACHE = System.getProperty("autostack.CACHE");
+    private static boolean INDEX = getBooleanProperty("autostack.INDEX", false);
 
     private static boolean getBooleanProperty(String prop, boolean def) {
         String value = System.getProperty(prop);
@@ -41,29 +56,109 @@ class Agent {
         return def;
     }
 
+    private static TransformCache openCache(File dir) {
+        final TransformCache cache;
+        try {
+            cache = new TransformCache(dir);
+        } catch (IOException e) {
+            System.err.println("[autostack] could not open cache in " + dir + ": " + e.getMessage());
+            return null;
+        }
+        if (DEBUG_TRANSFORM)
+            System.out.println("[autostack] using cache in " + dir);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    cache.close();
+                } catch (IOException e) {
+                    /* Ignore */
+                }
+            }
+        });
+        return cache;
+    }
+
+    /**
+     * Read all index files written by the {@link IndexProcessor} on the class path.
+     * 
+     * @return the internal names of all listed classes, or <code>null</code> if there is no index file
+     */
+    private static Set<String> loadIndex() {
+        Set<String> index = new HashSet<String>();
+        int files = 0;
+        try {
+            Enumeration<URL> urls = ClassLoader.getSystemClassLoader().getResources(IndexProcessor.INDEX);
+            while (urls.hasMoreElements()) {
+                URL url = urls.nextElement();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null)
+                        if (line.length() > 0)
+                            index.add(line);
+                } finally {
+                    reader.close();
+                }
+                files++;
+                if (DEBUG_TRANSFORM)
+                    System.out.println("[autostack] using index " + url);
+            }
+        } catch (IOException e) {
+            System.err.println("[autostack] could not read index: " + e.getMessage());
+            return null;
+        }
+        if (files == 0) {
+            System.err.println("[autostack] no " + IndexProcessor.INDEX + " found. Considering all classes");
+            return null;
+        }
+        return index;
+    }
+
     public static void premain(String agentArguments, Instrumentation instrumentation) {
     	if (agentArguments == null)
     		agentArguments = "";
     	String[] splitted = agentArguments.split(",");
-    	List<String> packs = new ArrayList<String>();
+    	PackageFilter filter = new PackageFilter();
     	boolean defaultNewStack = true;
     	for (String s : splitted) {
-    		if (s.startsWith("-")) {
-    			if ("-usecallerstack".equals(s))
-    				defaultNewStack = false;
-    			else if ("-usenewstack".equals(s))
-    				defaultNewStack = true;
-    		}
+    		s = s.trim();
+    		if (s.length() == 0)
+    			continue;
+    		if ("-usecallerstack".equals(s))
+    			defaultNewStack = false;
+    		else if ("-usenewstack".equals(s))
+    			defaultNewStack = true;
+    		else if (s.startsWith("-"))
+    			filter.exclude(s.substring(1));
+    		else if (s.startsWith("+"))
+    			filter.include(s.substring(1));
     		else
-    			packs.add(s.replace('.', '/'));
+    			filter.include(s);
     	}
-        Transformer transformer = new Transformer(packs);
+        Transformer transformer = new Transformer(filter);
         transformer.setDebugRuntime(DEBUG_RUNTIME);
         transformer.setDebugTransform(DEBUG_TRANSFORM);
         transformer.setTrace(TRACE);
         transformer.setDefaultNewStack(defaultNewStack);
         transformer.setCheckStack(CHECK_STACK);
         transformer.setStackAsParameter(STACK_PARAM);
+        transformer.setLazyStack(LAZY_STACK);
+        transformer.setInferStack(INFER_STACK);
+        transformer.setFoldFrames(FOLD_FRAMES);
+        transformer.setLoopStack(LOOP_STACK);
+        transformer.setCoalesce(COALESCE);
+        transformer.setReuseStack(REUSE_STACK);
+        if (INDEX)
+            transformer.setIndex(loadIndex());
+        if (CACHE != null)
+            transformer.setCache(openCache(new File(CACHE)));
+        if (PRETRANSFORM) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            Pretransformer pretransformer = new Pretransformer(transformer, threads);
+            pretransformer.setDebugTransform(DEBUG_TRANSFORM);
+            transformer.setPretransformer(pretransformer);
+            pretransformer.start(System.getProperty("java.class.path", ""));
+        }
         instrumentation.addTransformer(transformer);
     }
 
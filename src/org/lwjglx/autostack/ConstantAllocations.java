@@ -0,0 +1,337 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Finds runs of allocations on the thread's stack with sizes known at transformation time, such as
+ * <code>stackMallocPointer(1)</code> or <code>stackCallocInt(4)</code>, in straight-line code. All allocations of a run
+ * are served by a single allocation of their combined size at the first of them, the others are slices of it at fixed
+ * offsets.
+ * <p>
+ * A run ends at every label which is the target of a jump or the start of an exception handler, at every jump,
+ * <code>return</code> or <code>throw</code>, and at every other invocation of a <code>MemoryStack</code> method, such as
+ * pushing or popping a frame. So whenever a later allocation of a run is executed, the first one has been executed right
+ * before in the same frame. Every primitive buffer is placed at an offset aligned to its element size, pointers and
+ * <code>ByteBuffer</code>s at an offset aligned to <code>Pointer.POINTER_SIZE</code>, like <code>MemoryStack</code>
+ * does. Since the pointer size is only known at runtime, each run is laid out for both 32 and 64 bit pointers. If
+ * requested, allocations reuse the memory of earlier allocations of their run which are not used anymore.
+ *
+ * @author Kai Burjack
+ */
+class ConstantAllocations {
+
+    private static final String MEMORYSTACK = RewriteTable.MEMORYSTACK;
+
+    /**
+     * A run of allocations served by a single allocation.
+     */
+    static class Run {
+        /** The combined size of all allocations of the run in bytes with 64 bit pointers. */
+        int size;
+        /** The alignment of the combined allocation with 64 bit pointers. */
+        int alignment;
+        /** The combined size of all allocations of the run in bytes with 32 bit pointers. */
+        int size32;
+        /** The alignment of the combined allocation with 32 bit pointers. */
+        int alignment32;
+        /** Whether the combined allocation is zeroed, because any allocation of the run is. */
+        boolean zeroed;
+    }
+
+    /**
+     * An allocation which is a slice of the allocation of its run.
+     */
+    static class Slice {
+        /** The run, if this is its first allocation, or <code>null</code>. */
+        final Run run;
+        /** The offset of the slice in the allocation of the run with 64 bit pointers. */
+        final int offset;
+        /** The offset of the slice in the allocation of the run with 32 bit pointers. */
+        final int offset32;
+        /** The number of elements of the buffer. */
+        final int count;
+        /** The name of the <code>MemoryUtil</code> method creating the buffer at an address. */
+        final String method;
+        /** The descriptor of that method. */
+        final String desc;
+
+        Slice(Run run, int offset, int offset32, int count, String method, String desc) {
+            this.run = run;
+            this.offset = offset;
+            this.offset32 = offset32;
+            this.count = count;
+            this.method = method;
+            this.desc = desc;
+        }
+    }
+
+    private ConstantAllocations() {
+    }
+
+    /**
+     * An allocation of a run, before its offset is known.
+     */
+    private static class Allocation {
+        final int index;
+        final int invocation;
+        /** The element size, or <code>0</code> for pointers. */
+        final int elementSize;
+        final boolean bytes;
+        final boolean zeroed;
+        final int count;
+        final String method;
+        final String desc;
+        int offset;
+        int offset32;
+
+        Allocation(int index, int invocation, int elementSize, boolean bytes, boolean zeroed, int count, String method, String desc) {
+            this.index = index;
+            this.invocation = invocation;
+            this.elementSize = elementSize;
+            this.bytes = bytes;
+            this.zeroed = zeroed;
+            this.count = count;
+            this.method = method;
+            this.desc = desc;
+        }
+
+        int size(int pointerSize) {
+            return count * (elementSize == 0 ? pointerSize : elementSize);
+        }
+
+        int alignment(int pointerSize) {
+            return elementSize == 0 || bytes ? pointerSize : elementSize;
+        }
+    }
+
+    /**
+     * Analyze the allocations of the given method.
+     * 
+     * @param mn
+     *            the method
+     * @param className
+     *            the internal name of the class declaring the method
+     * @param classMethods
+     *            the name and descriptor of all methods of the class which use the stack
+     * @param allocatingMethods
+     *            the name and descriptor of those methods which allocate in the frame of their caller
+     * @param returnedAllocations
+     *            the invocations whose memory may be returned, as determined by
+     *            {@link StackEscapes#returnedAllocations(MethodNode, String, Set, Set)}, which are not part of any run,
+     *            or <code>null</code>
+     * @param reuse
+     *            whether allocations may share the memory of earlier allocations of their run which are not used anymore
+     * @return for each method invocation, in order, the slice it is replaced by, or <code>null</code> if it is not part
+     *         of a run of at least two allocations; or <code>null</code> if there is no such run
+     */
+    static Slice[] analyze(MethodNode mn, String className, Set<String> classMethods, Set<String> allocatingMethods, boolean[] returnedAllocations,
+            boolean reuse) {
+        InsnList insns = mn.instructions;
+        BitSet targets = jumpTargets(mn);
+        int invocations = 0;
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.getNext())
+            if (insn instanceof MethodInsnNode)
+                invocations++;
+        List<List<Allocation>> runs = new ArrayList<List<Allocation>>();
+        List<Allocation> run = new ArrayList<Allocation>();
+        int invocation = 0;
+        for (int i = 0; i < insns.size(); i++) {
+            AbstractInsnNode insn = insns.get(i);
+            int opcode = insn.getOpcode();
+            if (insn instanceof MethodInsnNode) {
+                MethodInsnNode min = (MethodInsnNode) insn;
+                int elementSize = opcode == INVOKESTATIC && min.owner.equals(MEMORYSTACK) ? elementSize(min.name, min.desc) : -1;
+                int count = elementSize != -1 ? constantCount(insn.getPrevious()) : -1;
+                if (count >= 0 && (returnedAllocations == null || !returnedAllocations[invocation])) {
+                    boolean bytes = min.desc.endsWith("Ljava/nio/ByteBuffer;");
+                    String buffer = min.desc.substring(min.desc.indexOf(')') + 1);
+                    String method = "mem" + buffer.substring(buffer.lastIndexOf('/') + 1, buffer.length() - 1);
+                    run.add(new Allocation(i, invocation, elementSize, bytes, min.name.startsWith("stackCalloc"), count, method, "(JI)" + buffer));
+                } else if (min.owner.equals(MEMORYSTACK) || returnedAllocations != null && returnedAllocations[invocation]) {
+                    run = end(runs, run);
+                }
+                invocation++;
+            } else if (insn instanceof JumpInsnNode || insn instanceof TableSwitchInsnNode || insn instanceof LookupSwitchInsnNode
+                    || opcode >= IRETURN && opcode <= RETURN || opcode == ATHROW || opcode == RET || targets.get(i)) {
+                run = end(runs, run);
+            }
+        }
+        end(runs, run);
+        if (runs.isEmpty())
+            return null;
+        Slice[] slices = new Slice[invocations];
+        BitSet[] live = reuse ? ControlFlow.liveLocals(mn) : null;
+        for (List<Allocation> allocations : runs) {
+            Run r = layout(mn, className, classMethods, allocatingMethods, allocations, live);
+            for (Allocation a : allocations)
+                slices[a.invocation] = new Slice(a == allocations.get(0) ? r : null, a.offset, a.offset32, a.count, a.method, a.desc);
+        }
+        return slices;
+    }
+
+    /**
+     * Keep a run of at least two allocations, a single allocation is left as it is.
+     * 
+     * @return a new empty run
+     */
+    private static List<Allocation> end(List<List<Allocation>> runs, List<Allocation> run) {
+        if (run.size() > 1)
+            runs.add(run);
+        return new ArrayList<Allocation>();
+    }
+
+    /**
+     * Place the allocations of a run at their offsets, like stack slot coloring does: An allocation shares the memory of
+     * earlier allocations which are not used anymore when it is executed. Zeroed allocations never share memory, since
+     * only the combined allocation is zeroed. Without live locals, no allocation shares memory.
+     */
+    private static Run layout(MethodNode mn, String className, Set<String> classMethods, Set<String> allocatingMethods, List<Allocation> allocations,
+            BitSet[] live) {
+        BitSet at = new BitSet();
+        for (Allocation a : allocations)
+            at.set(a.index);
+        List<BitSet> usedAt = new ArrayList<BitSet>();
+        for (Allocation a : allocations)
+            usedAt.add(live == null ? at : StackEscapes.usedAt(mn, className, classMethods, allocatingMethods, a.index, at, live));
+        Run run = new Run();
+        for (int k = 0; k < allocations.size(); k++) {
+            Allocation a = allocations.get(k);
+            a.offset = offset(allocations, usedAt, k, 8);
+            a.offset32 = offset(allocations, usedAt, k, 4);
+            run.size = Math.max(run.size, a.offset + a.size(8));
+            run.alignment = Math.max(run.alignment, a.alignment(8));
+            run.size32 = Math.max(run.size32, a.offset32 + a.size(4));
+            run.alignment32 = Math.max(run.alignment32, a.alignment(4));
+            run.zeroed |= a.zeroed;
+        }
+        return run;
+    }
+
+    /**
+     * Determine the lowest offset of the given allocation of a run not overlapping the earlier allocations it conflicts
+     * with, for the given pointer size.
+     */
+    private static int offset(List<Allocation> allocations, List<BitSet> usedAt, int k, int pointerSize) {
+        Allocation a = allocations.get(k);
+        int size = a.size(pointerSize), alignment = a.alignment(pointerSize);
+        int offset = 0;
+        boolean moved = true;
+        while (moved) {
+            moved = false;
+            for (int j = 0; j < k; j++) {
+                Allocation b = allocations.get(j);
+                int bOffset = pointerSize == 8 ? b.offset : b.offset32;
+                int bSize = b.size(pointerSize);
+                boolean conflicts = a.zeroed || usedAt.get(j).get(a.index);
+                if (conflicts && offset < bOffset + bSize && bOffset < offset + size) {
+                    offset = (bOffset + bSize + alignment - 1) & -alignment;
+                    moved = true;
+                }
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Determine the element size of the buffers allocated by the given <code>MemoryStack</code> method, <code>0</code>
+     * for pointers, or <code>-1</code> if it is no allocation of an uninitialized or zeroed buffer with a given number
+     * of elements.
+     */
+    private static int elementSize(String name, String desc) {
+        if (!name.startsWith("stackMalloc") && !name.startsWith("stackCalloc"))
+            return -1;
+        String type = name.substring(11);
+        if (type.isEmpty() && desc.equals("(I)Ljava/nio/ByteBuffer;"))
+            return 1;
+        if (type.equals("Short") && desc.equals("(I)Ljava/nio/ShortBuffer;"))
+            return 2;
+        if (type.equals("Int") && desc.equals("(I)Ljava/nio/IntBuffer;") || type.equals("Float") && desc.equals("(I)Ljava/nio/FloatBuffer;"))
+            return 4;
+        if (type.equals("Long") && desc.equals("(I)Ljava/nio/LongBuffer;") || type.equals("Double") && desc.equals("(I)Ljava/nio/DoubleBuffer;"))
+            return 8;
+        if (type.equals("Pointer") && desc.equals("(I)Lorg/lwjgl/PointerBuffer;"))
+            return 0;
+        return -1;
+    }
+
+    /**
+     * Determine the non-negative int constant pushed by the given instruction, or <code>-1</code>.
+     */
+    private static int constantCount(AbstractInsnNode insn) {
+        int opcode = insn.getOpcode();
+        int value;
+        if (opcode >= ICONST_0 && opcode <= ICONST_5)
+            value = opcode - ICONST_0;
+        else if (opcode == BIPUSH || opcode == SIPUSH)
+            value = ((IntInsnNode) insn).operand;
+        else if (opcode == LDC && ((LdcInsnNode) insn).cst instanceof Integer)
+            value = ((Integer) ((LdcInsnNode) insn).cst).intValue();
+        else
+            return -1;
+        /* Keep the combined size far from overflowing */
+        return value <= 0xFFFF ? value : -1;
+    }
+
+    private static BitSet jumpTargets(MethodNode mn) {
+        InsnList insns = mn.instructions;
+        BitSet targets = new BitSet(insns.size());
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn instanceof JumpInsnNode) {
+                targets.set(insns.indexOf(((JumpInsnNode) insn).label));
+            } else if (insn instanceof TableSwitchInsnNode) {
+                TableSwitchInsnNode tsin = (TableSwitchInsnNode) insn;
+                targets.set(insns.indexOf(tsin.dflt));
+                for (LabelNode label : tsin.labels)
+                    targets.set(insns.indexOf(label));
+            } else if (insn instanceof LookupSwitchInsnNode) {
+                LookupSwitchInsnNode lsin = (LookupSwitchInsnNode) insn;
+                targets.set(insns.indexOf(lsin.dflt));
+                for (LabelNode label : lsin.labels)
+                    targets.set(insns.indexOf(label));
+            }
+        }
+        for (TryCatchBlockNode tcb : mn.tryCatchBlocks)
+            targets.set(insns.indexOf(tcb.handler));
+        return targets;
+    }
+
+}
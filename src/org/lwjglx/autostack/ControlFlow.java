@@ -0,0 +1,248 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Simple queries on the control flow graph of a method, including the edges from every instruction covered by an
+ * exception handler to that handler.
+ *
+ * @author Kai Burjack
+ */
+class ControlFlow {
+
+    /**
+     * A loop with a single entry at its header instruction.
+     */
+    static class Loop {
+        final int header;
+        final BitSet body;
+
+        Loop(int header, BitSet body) {
+            this.header = header;
+            this.body = body;
+        }
+    }
+
+    private final MethodNode mn;
+    private final InsnList insns;
+    private final BitSet[] successors;
+
+    private ControlFlow(MethodNode mn) {
+        this.mn = mn;
+        this.insns = mn.instructions;
+        this.successors = new BitSet[insns.size()];
+        for (int i = 0; i < successors.length; i++)
+            successors[i] = computeSuccessors(i);
+    }
+
+    /**
+     * Determine whether the given instruction may be executed more than once in an invocation of the given method,
+     * because it is part of a cycle of the control flow graph.
+     */
+    static boolean isInLoop(MethodNode mn, AbstractInsnNode insn) {
+        if (hasSubroutines(mn))
+            // Don't bother following subroutines
+            return true;
+        ControlFlow cf = new ControlFlow(mn);
+        int target = mn.instructions.indexOf(insn);
+        BitSet visited = new BitSet(cf.successors.length);
+        Deque<Integer> work = new ArrayDeque<Integer>();
+        cf.addSuccessors(target, visited, work);
+        while (!work.isEmpty()) {
+            int i = work.poll().intValue();
+            if (i == target)
+                return true;
+            cf.addSuccessors(i, visited, work);
+        }
+        return false;
+    }
+
+    /**
+     * Determine the instructions of the given method which may be executed after any of the given instructions.
+     */
+    static BitSet reachableFrom(MethodNode mn, BitSet from) {
+        ControlFlow cf = new ControlFlow(mn);
+        BitSet visited = new BitSet(cf.successors.length);
+        Deque<Integer> work = new ArrayDeque<Integer>();
+        for (int i = from.nextSetBit(0); i >= 0; i = from.nextSetBit(i + 1))
+            cf.addSuccessors(i, visited, work);
+        while (!work.isEmpty())
+            cf.addSuccessors(work.poll().intValue(), visited, work);
+        return visited;
+    }
+
+    /**
+     * Find the loops of the given method, which are formed by the jumps back to an earlier instruction. All jumps back to
+     * the same instruction form a single loop. Loops which can be entered other than through their header, or whose
+     * header is an exception handler, are not reported.
+     */
+    static List<Loop> loops(MethodNode mn) {
+        List<Loop> loops = new ArrayList<Loop>();
+        if (hasSubroutines(mn))
+            return loops;
+        ControlFlow cf = new ControlFlow(mn);
+        BitSet[] predecessors = new BitSet[cf.successors.length];
+        for (int i = 0; i < predecessors.length; i++)
+            predecessors[i] = new BitSet();
+        for (int i = 0; i < predecessors.length; i++)
+            for (int s = cf.successors[i].nextSetBit(0); s >= 0; s = cf.successors[i].nextSetBit(s + 1))
+                predecessors[s].set(i);
+        BitSet handlers = new BitSet();
+        for (TryCatchBlockNode tcb : mn.tryCatchBlocks)
+            handlers.set(cf.insns.indexOf(tcb.handler));
+        for (int header = 0; header < predecessors.length; header++) {
+            BitSet body = new BitSet();
+            Deque<Integer> work = new ArrayDeque<Integer>();
+            for (int p = predecessors[header].nextSetBit(header); p >= 0; p = predecessors[header].nextSetBit(p + 1)) {
+                body.set(p);
+                work.add(Integer.valueOf(p));
+            }
+            if (body.isEmpty() || handlers.get(header))
+                continue;
+            body.set(header);
+            while (!work.isEmpty()) {
+                int i = work.poll().intValue();
+                for (int p = predecessors[i].nextSetBit(0); p >= 0; p = predecessors[i].nextSetBit(p + 1)) {
+                    if (!body.get(p)) {
+                        body.set(p);
+                        work.add(Integer.valueOf(p));
+                    }
+                }
+            }
+            if (isSingleEntry(header, body, predecessors))
+                loops.add(new Loop(header, body));
+        }
+        return loops;
+    }
+
+    private static boolean isSingleEntry(int header, BitSet body, BitSet[] predecessors) {
+        for (int i = body.nextSetBit(0); i >= 0; i = body.nextSetBit(i + 1)) {
+            if (i == header)
+                continue;
+            BitSet outside = (BitSet) predecessors[i].clone();
+            outside.andNot(body);
+            if (!outside.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compute the locals which are live before each instruction of the given method, i.e. which may be read before they
+     * are written on some path from that instruction.
+     */
+    static BitSet[] liveLocals(MethodNode mn) {
+        ControlFlow cf = new ControlFlow(mn);
+        int size = cf.successors.length;
+        BitSet[] live = new BitSet[size];
+        for (int i = 0; i < size; i++)
+            live[i] = new BitSet();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = size - 1; i >= 0; i--) {
+                BitSet in = new BitSet();
+                for (int s = cf.successors[i].nextSetBit(0); s >= 0; s = cf.successors[i].nextSetBit(s + 1))
+                    in.or(live[s]);
+                AbstractInsnNode insn = cf.insns.get(i);
+                int opcode = insn.getOpcode();
+                if (insn instanceof VarInsnNode) {
+                    int var = ((VarInsnNode) insn).var;
+                    if (opcode >= ISTORE && opcode <= ASTORE)
+                        in.clear(var);
+                    else
+                        in.set(var);
+                } else if (insn instanceof IincInsnNode) {
+                    in.set(((IincInsnNode) insn).var);
+                }
+                if (!in.equals(live[i])) {
+                    live[i] = in;
+                    changed = true;
+                }
+            }
+        }
+        return live;
+    }
+
+    private static boolean hasSubroutines(MethodNode mn) {
+        for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext())
+            if (insn.getOpcode() == JSR)
+                return true;
+        return false;
+    }
+
+    private void addSuccessors(int i, BitSet visited, Deque<Integer> work) {
+        for (int s = successors[i].nextSetBit(0); s >= 0; s = successors[i].nextSetBit(s + 1)) {
+            if (!visited.get(s)) {
+                visited.set(s);
+                work.add(Integer.valueOf(s));
+            }
+        }
+    }
+
+    private BitSet computeSuccessors(int i) {
+        BitSet successors = new BitSet();
+        AbstractInsnNode insn = insns.get(i);
+        int opcode = insn.getOpcode();
+        if (insn instanceof JumpInsnNode) {
+            successors.set(insns.indexOf(((JumpInsnNode) insn).label));
+        } else if (insn instanceof TableSwitchInsnNode) {
+            TableSwitchInsnNode tsin = (TableSwitchInsnNode) insn;
+            successors.set(insns.indexOf(tsin.dflt));
+            for (LabelNode l : tsin.labels)
+                successors.set(insns.indexOf(l));
+        } else if (insn instanceof LookupSwitchInsnNode) {
+            LookupSwitchInsnNode lsin = (LookupSwitchInsnNode) insn;
+            successors.set(insns.indexOf(lsin.dflt));
+            for (LabelNode l : lsin.labels)
+                successors.set(insns.indexOf(l));
+        }
+        for (TryCatchBlockNode tcb : mn.tryCatchBlocks)
+            if (i >= insns.indexOf(tcb.start) && i < insns.indexOf(tcb.end))
+                successors.set(insns.indexOf(tcb.handler));
+        boolean fallsThrough = opcode != GOTO && opcode != RET && opcode != ATHROW && !(opcode >= IRETURN && opcode <= RETURN)
+                && !(insn instanceof TableSwitchInsnNode) && !(insn instanceof LookupSwitchInsnNode);
+        if (fallsThrough && i + 1 < insns.size())
+            successors.set(i + 1);
+        return successors;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Transforms the classes of one or more class directories, either in place or into a mirror directory.
+ * <p>
+ * A state file records the content hash of every processed file, so that subsequent runs only process the files which
+ * changed since the last run. When the transformer settings change, all files are processed again. Classes which were
+ * transformed in place with other settings cannot be transformed again, since their original bytes are gone, and fail
+ * the run.
+ *
+ * @author Kai Burjack
+ */
+class DirectoryTransformer {
+
+    private static final String FLAGS_KEY = "@flags";
+
+    private final Transformer transformer;
+    private final File stateFile;
+    private boolean debugTransform;
+    private boolean parallel;
+
+    /**
+     * Create a new {@link DirectoryTransformer}.
+     *
+     * @param transformer
+     *            the transformer to use
+     * @param stateFile
+     *            the file recording the content hashes of the last run
+     */
+    public DirectoryTransformer(Transformer transformer, File stateFile) {
+        this.transformer = transformer;
+        this.stateFile = stateFile;
+    }
+
+    public boolean isDebugTransform() {
+        return debugTransform;
+    }
+
+    public void setDebugTransform(boolean debugTransform) {
+        this.debugTransform = debugTransform;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Transform all changed classes in the given class directories.
+     *
+     * @param roots
+     *            the class directories
+     * @param outDir
+     *            the mirror directory receiving all files of all class directories, or <code>null</code> to transform
+     *            in place
+     */
+    public void transform(List<File> roots, final File outDir) throws IOException {
+        final Properties oldState = new Properties();
+        if (stateFile.isFile()) {
+            InputStream is = new FileInputStream(stateFile);
+            try {
+                oldState.load(is);
+            } finally {
+                is.close();
+            }
+        }
+        String flags = Integer.toString(transformer.transformFlags());
+        if (!flags.equals(oldState.getProperty(FLAGS_KEY)))
+            oldState.clear();
+
+        /* Collect the files to process. With a mirror directory, the first class directory containing a file wins. */
+        Map<String, File> files = new LinkedHashMap<String, File>();
+        for (File root : roots)
+            collect(root, "", outDir, files);
+
+        List<Callable<String[]>> tasks = new ArrayList<Callable<String[]>>();
+        for (final Map.Entry<String, File> e : files.entrySet()) {
+            tasks.add(new Callable<String[]>() {
+                public String[] call() throws IOException {
+                    return process(e.getValue(), new File(e.getKey()), outDir == null, oldState);
+                }
+            });
+        }
+        List<String[]> results = new ArrayList<String[]>();
+        if (parallel) {
+            ForkJoinPool pool = new ForkJoinPool();
+            try {
+                for (Future<String[]> f : pool.invokeAll(tasks))
+                    results.add(f.get());
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            for (Callable<String[]> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+
+        Properties newState = new Properties();
+        newState.setProperty(FLAGS_KEY, flags);
+        int processed = 0;
+        for (String[] result : results) {
+            newState.setProperty(result[0], result[1]);
+            if (result[2] != null)
+                processed++;
+        }
+        if (outDir != null) {
+            /* Remove files from the mirror directory whose source files were deleted */
+            Set<String> stale = new HashSet<String>(oldState.stringPropertyNames());
+            stale.removeAll(newState.stringPropertyNames());
+            stale.remove(FLAGS_KEY);
+            for (String path : stale) {
+                if (debugTransform)
+                    System.out.println("[autostack] deleting stale file: " + path);
+                new File(path).delete();
+            }
+        }
+        if (debugTransform)
+            System.out.println("[autostack] processed " + processed + " changed files of " + results.size() + " files");
+        File parent = stateFile.getAbsoluteFile().getParentFile();
+        if (parent != null)
+            parent.mkdirs();
+        OutputStream os = new FileOutputStream(stateFile);
+        try {
+            newState.store(os, "autostack incremental transformation state");
+        } finally {
+            os.close();
+        }
+    }
+
+    private static void collect(File dir, String prefix, File outDir, Map<String, File> files) {
+        File[] children = dir.listFiles();
+        if (children == null)
+            return;
+        for (File child : children) {
+            String name = prefix + child.getName();
+            if (child.isDirectory()) {
+                collect(child, name + "/", outDir, files);
+            } else if (outDir != null) {
+                String out = new File(outDir, name).getAbsolutePath();
+                if (!files.containsKey(out))
+                    files.put(out, child);
+            } else if (name.endsWith(".class")) {
+                files.put(child.getAbsolutePath(), child);
+            }
+        }
+    }
+
+    /**
+     * Process a single file if its content changed since the last run.
+     *
+     * @return the state key, the content hash to record and, if the file was processed, its name
+     */
+    private String[] process(File in, File out, boolean inPlace, Properties oldState) throws IOException {
+        String key = out.getPath();
+        byte[] bytes = read(in);
+        String hash = hash(bytes);
+        if (hash.equals(oldState.getProperty(key)) && out.isFile())
+            return new String[] { key, hash, null };
+        String name = in.getName();
+        byte[] transformed = null;
+        if (name.endsWith(".class")) {
+            String className = className(in, bytes);
+            int flags = transformer.transformedFlags(bytes);
+            if (inPlace && flags != -1 && flags != transformer.transformFlags())
+                throw new IOException("Class " + className.replace('/', '.') + " was transformed in place with different settings. Rebuild the classes to transform them again: "
+                        + in);
+            transformed = transformer.transform((ClassLoader) null, className, null, null, bytes);
+        }
+        if (inPlace) {
+            if (transformed == null)
+                return new String[] { key, hash, name };
+            write(out, transformed);
+            /* Record the hash of the transformed file, which is what we will find on the next run */
+            return new String[] { key, hash(transformed), name };
+        }
+        write(out, transformed != null ? transformed : bytes);
+        return new String[] { key, hash, name };
+    }
+
+    /**
+     * Determine the internal name of the given class from its class file, since the class directory may be nested.
+     */
+    private static String className(File file, byte[] bytes) {
+        try {
+            return new ClassReader(bytes).getClassName();
+        } catch (RuntimeException e) {
+            String name = file.getName();
+            return name.substring(0, name.length() - 6);
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream((int) file.length());
+            int read = 0;
+            byte[] arr = new byte[4096];
+            while ((read = is.read(arr, 0, arr.length)) != -1) {
+                baos.write(arr, 0, read);
+            }
+            return baos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null)
+            parent.mkdirs();
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(bytes);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static String hash(byte[] bytes) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        byte[] h = digest.digest(bytes);
+        StringBuilder sb = new StringBuilder(h.length * 2);
+        for (byte b : h)
+            sb.append(Character.forDigit(b >>> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.TreeScanner;
+import com.sun.source.util.Trees;
+
+/**
+ * Annotation processor writing the index file <code>META-INF/autostack.idx</code>, which lists all top-level classes
+ * that (including their nested, local and anonymous classes) possibly need transformation, because they invoke
+ * MemoryStack or struct stack allocation methods or use any of the Autostack annotations.
+ * <p>
+ * The {@link Agent} started with <code>-Dautostack.INDEX</code> only considers classes listed in such index files.
+ * <p>
+ * Method invocations are matched by name only, so the index may contain classes which do not actually need
+ * transformation, but it never misses one.
+ *
+ * @author Kai Burjack
+ */
+@SupportedAnnotationTypes("*")
+public class IndexProcessor extends AbstractProcessor {
+
+    static final String INDEX = "META-INF/autostack.idx";
+
+    private Trees trees;
+    private final Set<String> seen = new HashSet<String>();
+    private final Set<String> candidates = new TreeSet<String>();
+
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        try {
+            trees = Trees.instance(processingEnv);
+        } catch (IllegalArgumentException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "[autostack] not running within javac. Not generating " + INDEX);
+        }
+    }
+
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (trees == null)
+            return false;
+        for (Element element : roundEnv.getRootElements()) {
+            if (!(element instanceof TypeElement))
+                continue;
+            TypeElement type = (TypeElement) element;
+            String name = processingEnv.getElementUtils().getBinaryName(type).toString().replace('.', '/');
+            seen.add(name);
+            if (hasAutostackAnnotation(type) || invokesStackMethod(type))
+                candidates.add(name);
+        }
+        if (roundEnv.processingOver())
+            writeIndex();
+        return false;
+    }
+
+    private static boolean hasAutostackAnnotation(Element element) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            String name = annotation.getAnnotationType().toString();
+            if (name.equals(UseNewStack.class.getName())
+                    || name.equals(UseCallerStack.class.getName())
+                    || name.equals(NoTransform.class.getName())
+                    || name.equals(NoStackParam.class.getName()))
+                return true;
+        }
+        for (Element enclosed : element.getEnclosedElements())
+            if (hasAutostackAnnotation(enclosed))
+                return true;
+        return false;
+    }
+
+    private boolean invokesStackMethod(TypeElement type) {
+        TreePath path = trees.getPath(type);
+        if (path == null)
+            return true;
+        Boolean result = new TreeScanner<Boolean, Void>() {
+            public Boolean visitMethodInvocation(MethodInvocationTree node, Void p) {
+                Tree select = node.getMethodSelect();
+                String name = null;
+                if (select instanceof IdentifierTree)
+                    name = ((IdentifierTree) select).getName().toString();
+                else if (select instanceof MemberSelectTree)
+                    name = ((MemberSelectTree) select).getIdentifier().toString();
+                if (name != null && isStackMethodName(name))
+                    return Boolean.TRUE;
+                return super.visitMethodInvocation(node, p);
+            }
+
+            public Boolean reduce(Boolean r1, Boolean r2) {
+                return Boolean.valueOf(Boolean.TRUE.equals(r1) || Boolean.TRUE.equals(r2));
+            }
+        }.scan(path.getLeaf(), null);
+        return Boolean.TRUE.equals(result);
+    }
+
+    private static boolean isStackMethodName(String name) {
+        return name.startsWith("stack") || name.startsWith("nstack") || name.equals("mallocStack") || name.equals("callocStack");
+    }
+
+    /**
+     * Write the index, merging it with the index of a previous (incremental) compilation.
+     */
+    private void writeIndex() {
+        Set<String> index = new TreeSet<String>();
+        try {
+            FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(existing.openInputStream(), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    if (line.length() > 0 && !seen.contains(line))
+                        index.add(line);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            /* No previous index */
+        }
+        index.addAll(candidates);
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+            Writer writer = new OutputStreamWriter(file.openOutputStream(), "UTF-8");
+            try {
+                for (String name : index)
+                    writer.write(name + "\n");
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "[autostack] could not write " + INDEX + ": " + e.getMessage());
+        }
+    }
+
+}
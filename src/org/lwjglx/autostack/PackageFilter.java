@@ -0,0 +1,133 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import java.util.Arrays;
+
+/**
+ * Decides whether a class is to be considered for transformation based on include and exclude prefixes of its internal
+ * name.
+ * <p>
+ * All prefixes are stored in a trie, so that matching a class name only walks the characters of its longest matching
+ * prefix, regardless of the number of rules. The rule of the longest matching prefix wins. Classes not matching any rule
+ * are included if there are no include rules.
+ * <p>
+ * Classes of the JDK and of LWJGL are always excluded.
+ *
+ * @author Kai Burjack
+ */
+class PackageFilter {
+
+    private static final byte NONE = 0;
+    private static final byte INCLUDE = 1;
+    private static final byte EXCLUDE = 2;
+    private static final byte EXCLUDE_ALWAYS = 3;
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+    private static final char[] NO_KEYS = new char[0];
+
+    private static class Node {
+        char[] keys = NO_KEYS;
+        Node[] children = NO_CHILDREN;
+        byte rule;
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; i++)
+                if (keys[i] == c)
+                    return children[i];
+            return null;
+        }
+
+        Node getOrAddChild(char c) {
+            Node child = child(c);
+            if (child != null)
+                return child;
+            child = new Node();
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            keys[keys.length - 1] = c;
+            children[children.length - 1] = child;
+            return child;
+        }
+    }
+
+    private final Node root = new Node();
+    private boolean hasIncludes;
+
+    public PackageFilter() {
+        add("java/", EXCLUDE_ALWAYS);
+        add("sun/", EXCLUDE_ALWAYS);
+        add("jdk/internal/", EXCLUDE_ALWAYS);
+        add("org/lwjgl/", EXCLUDE_ALWAYS);
+    }
+
+    /**
+     * Include all classes whose internal name starts with the given prefix, unless a longer exclude prefix matches.
+     *
+     * @param prefix
+     *            the package or class name prefix, either in internal or in binary form
+     */
+    public void include(String prefix) {
+        add(prefix, INCLUDE);
+        hasIncludes = true;
+    }
+
+    /**
+     * Exclude all classes whose internal name starts with the given prefix, unless a longer include prefix matches.
+     *
+     * @param prefix
+     *            the package or class name prefix, either in internal or in binary form
+     */
+    public void exclude(String prefix) {
+        add(prefix, EXCLUDE);
+    }
+
+    private void add(String prefix, byte rule) {
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++)
+            node = node.getOrAddChild(prefix.charAt(i) == '.' ? '/' : prefix.charAt(i));
+        if (node.rule != EXCLUDE_ALWAYS)
+            node.rule = rule;
+    }
+
+    /**
+     * Determine whether the class with the given internal name is to be considered for transformation.
+     */
+    public boolean matches(String className) {
+        Node node = root;
+        byte rule = root.rule;
+        for (int i = 0, len = className.length(); i < len; i++) {
+            node = node.child(className.charAt(i));
+            if (node == null)
+                break;
+            if (node.rule == EXCLUDE_ALWAYS)
+                return false;
+            if (node.rule != NONE)
+                rule = node.rule;
+        }
+        if (rule == NONE)
+            return !hasIncludes;
+        return rule == INCLUDE;
+    }
+
+}
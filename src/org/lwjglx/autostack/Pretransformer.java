@@ -0,0 +1,208 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Speculatively transforms the classes found on the class path in background threads, so that the
+ * {@link Transformer} invoked on the class-loading thread can usually just return the ready result.
+ * <p>
+ * Only classes passing {@link Transformer#isIncluded(String)} and {@link Transformer#isCandidate(String, byte[])} are
+ * transformed. A result is only used for a class being loaded when its class file bytes are identical to the ones
+ * found on the class path.
+ *
+ * @author Kai Burjack
+ */
+class Pretransformer {
+
+    private static class Task extends FutureTask<byte[]> {
+        final byte[] classfileBuffer;
+        final RewriteTable table;
+
+        Task(Callable<byte[]> callable, byte[] classfileBuffer, RewriteTable table) {
+            super(callable);
+            this.classfileBuffer = classfileBuffer;
+            this.table = table;
+        }
+    }
+
+    private final Transformer transformer;
+    private final ConcurrentHashMap<String, Task> tasks = new ConcurrentHashMap<String, Task>();
+    private final ExecutorService executor;
+    private boolean debugTransform;
+
+    public Pretransformer(Transformer transformer, int threads) {
+        this.transformer = transformer;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "autostack-pretransform");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public boolean isDebugTransform() {
+        return debugTransform;
+    }
+
+    public void setDebugTransform(boolean debugTransform) {
+        this.debugTransform = debugTransform;
+    }
+
+    /**
+     * Start scanning the given class path in a background thread and submit all candidate classes for transformation.
+     *
+     * @param classPath
+     *            the class path, such as the value of the <code>java.class.path</code> system property
+     */
+    public void start(final String classPath) {
+        Thread scanner = new Thread("autostack-pretransform-scanner") {
+            public void run() {
+                for (String element : classPath.split(File.pathSeparator)) {
+                    if (element.length() == 0)
+                        continue;
+                    File file = new File(element);
+                    try {
+                        if (file.isDirectory())
+                            scanDirectory(file, "");
+                        else if (file.isFile())
+                            scanJar(file);
+                    } catch (IOException e) {
+                        if (debugTransform)
+                            System.out.println("[autostack] could not scan class path element " + file + ": " + e.getMessage());
+                    }
+                }
+                executor.shutdown();
+            }
+        };
+        scanner.setDaemon(true);
+        scanner.start();
+    }
+
+    private void scanDirectory(File dir, String prefix) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                scanDirectory(file, name + "/");
+            } else if (name.endsWith(".class")) {
+                String className = name.substring(0, name.length() - 6);
+                if (!transformer.isIncluded(className))
+                    continue;
+                InputStream is = new FileInputStream(file);
+                try {
+                    submit(className, readFully(is));
+                } finally {
+                    is.close();
+                }
+            }
+        }
+    }
+
+    private void scanJar(File file) throws IOException {
+        JarFile jar = new JarFile(file);
+        try {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (entry.isDirectory() || !name.endsWith(".class") || name.startsWith("META-INF/"))
+                    continue;
+                String className = name.substring(0, name.length() - 6);
+                if (!transformer.isIncluded(className))
+                    continue;
+                InputStream is = jar.getInputStream(entry);
+                try {
+                    submit(className, readFully(is));
+                } finally {
+                    is.close();
+                }
+            }
+        } finally {
+            jar.close();
+        }
+    }
+
+    private void submit(final String className, final byte[] classfileBuffer) {
+        if (!transformer.isCandidate(className, classfileBuffer))
+            return;
+        /* The classes of the class path are loaded by the system class loader */
+        final RewriteTable table = transformer.rewriteTable(ClassLoader.getSystemClassLoader());
+        Task task = new Task(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                return transformer.transformCandidate(table, className, classfileBuffer);
+            }
+        }, classfileBuffer, table);
+        /* The first occurrence on the class path wins */
+        if (tasks.putIfAbsent(className, task) == null)
+            executor.execute(task);
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int read = 0;
+        byte[] arr = new byte[4096];
+        while ((read = is.read(arr, 0, arr.length)) != -1) {
+            baos.write(arr, 0, read);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Remove and return the transformation task for the given class, if the class was found on the class path with the
+     * same class file bytes and is transformed with the same {@link RewriteTable}.
+     *
+     * @param className
+     *            the internal name of the class
+     * @param classfileBuffer
+     *            the class file bytes of the class being loaded
+     * @param table
+     *            the rewrite table for the class loader of the class being loaded
+     * @return the task or <code>null</code>
+     */
+    public FutureTask<byte[]> take(String className, byte[] classfileBuffer, RewriteTable table) {
+        Task task = tasks.remove(className);
+        if (task == null || task.table != table || !Arrays.equals(task.classfileBuffer, classfileBuffer))
+            return null;
+        return task;
+    }
+
+}
@@ -0,0 +1,369 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Minimal zip file reader and writer allowing to copy entries from one zip file to another without inflating and
+ * deflating them again.
+ * <p>
+ * Only the subset of the zip format produced by the usual jar tools is supported. In particular, ZIP64 and encrypted
+ * entries are not.
+ *
+ * @author Kai Burjack
+ */
+class RawZip {
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final int FLAG_UTF8 = 0x800;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * An entry of a zip file read by {@link Reader}.
+     */
+    static class Entry {
+        String name;
+        byte[] nameBytes;
+        int versionMadeBy;
+        int flags;
+        int method;
+        int time;
+        int date;
+        int crc;
+        int compressedSize;
+        int size;
+        int externalAttributes;
+        byte[] localExtra;
+        byte[] centralExtra;
+        byte[] comment;
+        int dataOffset;
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    /**
+     * Reads the entries of a zip file via its central directory.
+     * <p>
+     * The file is memory-mapped and {@link #read(Entry)} can be called concurrently by multiple threads.
+     */
+    static class Reader {
+        private final RandomAccessFile file;
+        private final MappedByteBuffer buffer;
+        private final List<Entry> entries = new ArrayList<Entry>();
+
+        private Reader(RandomAccessFile file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Open the given zip file.
+         *
+         * @param zip
+         *            the zip file
+         * @return the reader or <code>null</code> if the zip file uses features not supported by this reader
+         * @throws IOException
+         *             if the file could not be read
+         */
+        public static Reader open(File zip) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(zip, "r");
+            boolean success = false;
+            try {
+                long length = file.length();
+                if (length > Integer.MAX_VALUE)
+                    return null;
+                MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0L, length);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                Reader reader = new Reader(file, buffer);
+                success = reader.readCentralDirectory();
+                return success ? reader : null;
+            } finally {
+                if (!success)
+                    file.close();
+            }
+        }
+
+        private boolean readCentralDirectory() throws ZipException {
+            int end = -1;
+            for (int pos = buffer.limit() - 22, min = Math.max(0, pos - 0xFFFF); pos >= min; pos--) {
+                if (buffer.getInt(pos) == END_OF_CENTRAL_DIRECTORY) {
+                    end = pos;
+                    break;
+                }
+            }
+            if (end == -1)
+                throw new ZipException("End of central directory not found");
+            int count = buffer.getShort(end + 10) & 0xFFFF;
+            long offset = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+            if (count == 0xFFFF || offset == 0xFFFFFFFFL)
+                /* ZIP64 */
+                return false;
+            int pos = (int) offset;
+            for (int i = 0; i < count; i++) {
+                if (buffer.getInt(pos) != CENTRAL_HEADER)
+                    throw new ZipException("Invalid central directory header");
+                Entry e = new Entry();
+                e.versionMadeBy = buffer.getShort(pos + 4) & 0xFFFF;
+                e.flags = buffer.getShort(pos + 8) & 0xFFFF;
+                e.method = buffer.getShort(pos + 10) & 0xFFFF;
+                e.time = buffer.getShort(pos + 12) & 0xFFFF;
+                e.date = buffer.getShort(pos + 14) & 0xFFFF;
+                e.crc = buffer.getInt(pos + 16);
+                e.compressedSize = buffer.getInt(pos + 20);
+                e.size = buffer.getInt(pos + 24);
+                int nameLength = buffer.getShort(pos + 28) & 0xFFFF;
+                int extraLength = buffer.getShort(pos + 30) & 0xFFFF;
+                int commentLength = buffer.getShort(pos + 32) & 0xFFFF;
+                e.externalAttributes = buffer.getInt(pos + 38);
+                int localOffset = buffer.getInt(pos + 42);
+                if ((e.flags & FLAG_ENCRYPTED) != 0 || e.method != STORED && e.method != DEFLATED || e.compressedSize < 0 || e.size < 0 || localOffset < 0)
+                    return false;
+                e.nameBytes = bytes(pos + 46, nameLength);
+                e.name = new String(e.nameBytes, UTF8);
+                e.centralExtra = bytes(pos + 46 + nameLength, extraLength);
+                e.comment = bytes(pos + 46 + nameLength + extraLength, commentLength);
+                if (buffer.getInt(localOffset) != LOCAL_HEADER)
+                    throw new ZipException("Invalid local file header of entry " + e.name);
+                int localNameLength = buffer.getShort(localOffset + 26) & 0xFFFF;
+                int localExtraLength = buffer.getShort(localOffset + 28) & 0xFFFF;
+                e.localExtra = bytes(localOffset + 30 + localNameLength, localExtraLength);
+                e.dataOffset = localOffset + 30 + localNameLength + localExtraLength;
+                entries.add(e);
+                pos += 46 + nameLength + extraLength + commentLength;
+            }
+            return true;
+        }
+
+        private byte[] bytes(int pos, int length) {
+            byte[] arr = new byte[length];
+            ByteBuffer bb = buffer.duplicate();
+            bb.position(pos);
+            bb.get(arr);
+            return arr;
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * Read and possibly inflate the contents of the given entry.
+         */
+        public byte[] read(Entry e) throws IOException {
+            if (e.method == STORED)
+                return bytes(e.dataOffset, e.size);
+            /* Inflater in nowrap mode requires an additional dummy byte */
+            byte[] compressed = new byte[e.compressedSize + 1];
+            ByteBuffer bb = buffer.duplicate();
+            bb.position(e.dataOffset);
+            bb.get(compressed, 0, e.compressedSize);
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(compressed);
+                byte[] arr = new byte[e.size];
+                int off = 0;
+                while (off < arr.length) {
+                    int n = inflater.inflate(arr, off, arr.length - off);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                        throw new ZipException("Truncated entry " + e.name);
+                    off += n;
+                }
+                return arr;
+            } catch (DataFormatException ex) {
+                throw new ZipException("Invalid deflated data in entry " + e.name + ": " + ex.getMessage());
+            } finally {
+                inflater.end();
+            }
+        }
+
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Writes a zip file from raw copies of {@link Entry entries} read by a {@link Reader} and from new contents.
+     */
+    static class Writer {
+        private final File zip;
+        private final OutputStream out;
+        private final ByteArrayOutputStream central = new ByteArrayOutputStream();
+        private final byte[] header = new byte[46];
+        private final ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        private final boolean stored;
+        private final Deflater deflater;
+        private long offset;
+        private int count;
+
+        /**
+         * Create a writer for the given file.
+         *
+         * @param zip
+         *            the file to write
+         * @param stored
+         *            whether to store all entries uncompressed
+         * @param level
+         *            the compression level for new entries if not <code>stored</code>
+         */
+        public Writer(File zip, boolean stored, int level) throws IOException {
+            this.zip = zip;
+            this.out = new BufferedOutputStream(new FileOutputStream(zip), 65536);
+            this.stored = stored;
+            this.deflater = stored ? null : new Deflater(level, true);
+        }
+
+        /**
+         * Copy the given entry as is, without inflating and deflating it, unless it needs to be inflated to be stored.
+         */
+        public void copy(Reader reader, Entry e) throws IOException {
+            if (stored && e.method != STORED) {
+                write(e, reader.read(e));
+                return;
+            }
+            writeEntry(e, e.method, e.crc, e.compressedSize, e.size);
+            ByteBuffer bb = reader.buffer.duplicate();
+            bb.position(e.dataOffset);
+            byte[] arr = new byte[8192];
+            for (int remaining = e.compressedSize; remaining > 0;) {
+                int n = Math.min(remaining, arr.length);
+                bb.get(arr, 0, n);
+                out.write(arr, 0, n);
+                remaining -= n;
+            }
+            offset += e.compressedSize;
+        }
+
+        /**
+         * Write the given entry with new contents.
+         */
+        public void write(Entry e, byte[] data) throws IOException {
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            if (stored || e.isDirectory()) {
+                writeEntry(e, STORED, (int) crc.getValue(), data.length, data.length);
+                out.write(data, 0, data.length);
+                offset += data.length;
+                return;
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 2 + 64);
+            deflater.reset();
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] arr = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(arr);
+                baos.write(arr, 0, n);
+            }
+            writeEntry(e, DEFLATED, (int) crc.getValue(), baos.size(), data.length);
+            baos.writeTo(out);
+            offset += baos.size();
+        }
+
+        private void writeEntry(Entry e, int method, int crc, int compressedSize, int size) throws IOException {
+            if (offset > 0xFFFFFFFFL || count == 0xFFFF)
+                throw new ZipException("Output zip file too large");
+            int version = method == STORED ? 10 : 20;
+            /* Sizes and CRC are always known upfront, so never use a data descriptor */
+            int flags = e.flags & FLAG_UTF8;
+            headerBuffer.clear();
+            headerBuffer.putInt(LOCAL_HEADER).putShort((short) version).putShort((short) flags).putShort((short) method)
+                        .putShort((short) e.time).putShort((short) e.date).putInt(crc).putInt(compressedSize).putInt(size)
+                        .putShort((short) e.nameBytes.length).putShort((short) e.localExtra.length);
+            out.write(header, 0, 30);
+            out.write(e.nameBytes);
+            out.write(e.localExtra);
+            headerBuffer.clear();
+            headerBuffer.putInt(CENTRAL_HEADER).putShort((short) e.versionMadeBy).putShort((short) version).putShort((short) flags)
+                        .putShort((short) method).putShort((short) e.time).putShort((short) e.date).putInt(crc)
+                        .putInt(compressedSize).putInt(size).putShort((short) e.nameBytes.length)
+                        .putShort((short) e.centralExtra.length).putShort((short) e.comment.length).putShort((short) 0)
+                        .putShort((short) 0).putInt(e.externalAttributes).putInt((int) offset);
+            central.write(header, 0, 46);
+            central.write(e.nameBytes);
+            central.write(e.centralExtra);
+            central.write(e.comment);
+            offset += 30 + e.nameBytes.length + e.localExtra.length;
+            count++;
+        }
+
+        /**
+         * Write the central directory and close the file.
+         */
+        public void close() throws IOException {
+            central.writeTo(out);
+            headerBuffer.clear();
+            headerBuffer.putInt(END_OF_CENTRAL_DIRECTORY).putShort((short) 0).putShort((short) 0).putShort((short) count)
+                        .putShort((short) count).putInt(central.size()).putInt((int) offset).putShort((short) 0);
+            out.write(header, 0, 22);
+            out.close();
+            if (deflater != null)
+                deflater.end();
+        }
+
+        /**
+         * Close and delete the file without writing the central directory, so that a failed transformation does not leave
+         * behind a valid zip file lacking the entries after the failure.
+         */
+        public void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                /* Deleted anyway */
+            }
+            if (deflater != null)
+                deflater.end();
+            zip.delete();
+        }
+    }
+
+}
@@ -0,0 +1,326 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Table of the static LWJGL methods allocating on the thread's MemoryStack and of the methods to invoke instead with an
+ * explicit MemoryStack.
+ * <p>
+ * The table of a class is derived from the bytecode of the class itself, as found by the class loader: Every public static
+ * method whose body just passes its arguments in order together with the result of <code>MemoryStack.stackGet()</code>
+ * to another method is rewritable. If <code>stackGet()</code> is invoked first, such as in
+ * <code>stackMalloc(int size) { return stackGet().malloc(size); }</code>, the other method is invoked on the stack.
+ * Otherwise the stack is the last argument, such as in <code>mallocStack() { return malloc(stackGet()); }</code>. This
+ * way, all overloads of the LWJGL version in use are covered without knowing about them.
+ * <p>
+ * If the class cannot be found, such as when running the offline {@link Tool} without LWJGL on the class path, its methods
+ * are not rewritten, since the methods to invoke instead cannot be checked to exist. They then keep allocating on the
+ * thread's stack.
+ *
+ * @author Kai Burjack
+ */
+class RewriteTable {
+
+    static final String MEMORYSTACK = "org/lwjgl/system/MemoryStack";
+    private static final String VERSION = "org/lwjgl/Version";
+
+    /**
+     * A method to invoke instead of a static method allocating on the thread's stack.
+     */
+    static class Rewrite {
+        /**
+         * Either {@link org.objectweb.asm.Opcodes#INVOKEVIRTUAL} to invoke {@link #name} on the stack, or
+         * {@link org.objectweb.asm.Opcodes#INVOKESTATIC} to invoke {@link #name} with the stack as additional last argument.
+         */
+        final int opcode;
+        final String owner;
+        final String name;
+        final String desc;
+
+        Rewrite(int opcode, String owner, String name, String desc) {
+            this.opcode = opcode;
+            this.owner = owner;
+            this.name = name;
+            this.desc = desc;
+        }
+    }
+
+    private static final Map<String, Rewrite> NOT_FOUND = Collections.emptyMap();
+
+    private final ClassLoader loader;
+    private final Map<String, Map<String, Rewrite>> tables = new ConcurrentHashMap<String, Map<String, Rewrite>>();
+    private volatile byte[] digest;
+
+    /**
+     * Create a new {@link RewriteTable}.
+     * 
+     * @param loader
+     *            the class loader to read the LWJGL class files from, or <code>null</code> for the system class loader
+     */
+    public RewriteTable(ClassLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Determine whether the class loader finds <code>MemoryStack</code>, without which no invocation is rewritten.
+     */
+    public boolean isMemoryStackFound() {
+        String name = MEMORYSTACK + ".class";
+        return (loader != null ? loader.getResource(name) : ClassLoader.getSystemResource(name)) != null;
+    }
+
+    /**
+     * Compute a digest of the LWJGL version the rewrites are derived from, which are the class files of
+     * <code>MemoryStack</code> and <code>Version</code>. Classes transformed with tables of different digests may
+     * invoke different methods.
+     */
+    public byte[] digest() {
+        byte[] d = digest;
+        if (d != null)
+            return d;
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        for (String name : new String[] { MEMORYSTACK, VERSION }) {
+            byte[] bytes = readFully(name);
+            /* Distinguish a missing class from an empty one */
+            md.update((byte) (bytes != null ? 1 : 0));
+            if (bytes != null)
+                md.update(bytes);
+        }
+        return digest = md.digest();
+    }
+
+    private InputStream resource(String name) {
+        return loader != null ? loader.getResourceAsStream(name + ".class") : ClassLoader.getSystemResourceAsStream(name + ".class");
+    }
+
+    private byte[] readFully(String name) {
+        InputStream is = resource(name);
+        if (is == null)
+            return null;
+        try {
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = is.read(buffer)) != -1)
+                    baos.write(buffer, 0, read);
+                return baos.toByteArray();
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Determine whether an invocation of the given static method possibly allocates on the thread's stack, based on its
+     * name alone.
+     */
+    static boolean isStackMethod(String owner, String name) {
+        if (owner.equals(MEMORYSTACK))
+            return name.startsWith("stack") || name.startsWith("nstack");
+        return owner.startsWith("org/lwjgl/") && (name.equals("mallocStack") || name.equals("callocStack"));
+    }
+
+    /**
+     * Lookup the method to invoke instead of the given static method.
+     * <p>
+     * <code>MemoryStack.stackGet()</code> itself has no rewrite.
+     * 
+     * @return the rewrite, or <code>null</code> if the method does not use the thread's stack, cannot be rewritten or its
+     *         class cannot be found
+     */
+    public Rewrite get(String owner, String name, String desc) {
+        if (!isStackMethod(owner, name))
+            return null;
+        Map<String, Rewrite> table = tables.get(owner);
+        if (table == null) {
+            table = read(owner);
+            tables.put(owner, table);
+        }
+        return table.get(name + desc);
+    }
+
+    private Map<String, Rewrite> read(String owner) {
+        InputStream is = resource(owner);
+        if (is == null)
+            return NOT_FOUND;
+        ClassReader cr;
+        try {
+            try {
+                cr = new ClassReader(is);
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            return NOT_FOUND;
+        }
+        final Map<String, Rewrite> table = new HashMap<String, Rewrite>();
+        cr.accept(new ClassVisitor(ASM7) {
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                if ((access & (ACC_PUBLIC | ACC_STATIC | ACC_SYNTHETIC)) != (ACC_PUBLIC | ACC_STATIC) || !isStackMethod(owner, name))
+                    return null;
+                return new DelegateScanner(table, name, desc);
+            }
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return table;
+    }
+
+    /**
+     * Matches the body of a static method against <code>return stackGet().name(args)</code> and
+     * <code>return name(args, stackGet())</code>.
+     */
+    private static class DelegateScanner extends MethodVisitor {
+        private final Map<String, Rewrite> table;
+        private final String name;
+        private final String desc;
+        private final Type[] argTypes;
+        private int nextArg;
+        private int nextVar;
+        private boolean stackLoaded;
+        private int stackLoadedAtArg;
+        private Rewrite rewrite;
+        private boolean returned;
+        private boolean failed;
+
+        DelegateScanner(Map<String, Rewrite> table, String name, String desc) {
+            super(ASM7);
+            this.table = table;
+            this.name = name;
+            this.desc = desc;
+            this.argTypes = Type.getArgumentTypes(desc);
+        }
+
+        public void visitVarInsn(int opcode, int var) {
+            if (rewrite == null && nextArg < argTypes.length && opcode == argTypes[nextArg].getOpcode(ILOAD) && var == nextVar) {
+                nextVar += argTypes[nextArg++].getSize();
+                return;
+            }
+            failed = true;
+        }
+
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            if (rewrite != null || itf) {
+                failed = true;
+            } else if (!stackLoaded) {
+                if (opcode == INVOKESTATIC && owner.equals(MEMORYSTACK) && name.equals("stackGet") && desc.equals("()L" + MEMORYSTACK + ";")) {
+                    stackLoaded = true;
+                    stackLoadedAtArg = nextArg;
+                } else {
+                    failed = true;
+                }
+            } else if (nextArg != argTypes.length || !Type.getReturnType(desc).equals(Type.getReturnType(this.desc))) {
+                failed = true;
+            } else if (stackLoadedAtArg == 0 && opcode == INVOKEVIRTUAL && owner.equals(MEMORYSTACK) && sameArguments(desc, this.desc, "")) {
+                rewrite = new Rewrite(INVOKEVIRTUAL, owner, name, desc);
+            } else if (stackLoadedAtArg == argTypes.length && opcode == INVOKESTATIC && sameArguments(desc, this.desc, "L" + MEMORYSTACK + ";")) {
+                rewrite = new Rewrite(INVOKESTATIC, owner, name, desc);
+            } else {
+                failed = true;
+            }
+        }
+
+        private static boolean sameArguments(String desc, String staticDesc, String additional) {
+            String args = staticDesc.substring(0, staticDesc.indexOf(')'));
+            return desc.startsWith(args) && desc.startsWith(additional + ")", args.length());
+        }
+
+        public void visitInsn(int opcode) {
+            if (rewrite != null && !returned && opcode >= IRETURN && opcode <= ARETURN)
+                returned = true;
+            else
+                failed = true;
+        }
+
+        public void visitIntInsn(int opcode, int operand) {
+            failed = true;
+        }
+
+        public void visitTypeInsn(int opcode, String type) {
+            failed = true;
+        }
+
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            failed = true;
+        }
+
+        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+            failed = true;
+        }
+
+        public void visitJumpInsn(int opcode, Label label) {
+            failed = true;
+        }
+
+        public void visitLdcInsn(Object value) {
+            failed = true;
+        }
+
+        public void visitIincInsn(int var, int increment) {
+            failed = true;
+        }
+
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            failed = true;
+        }
+
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            failed = true;
+        }
+
+        public void visitMultiANewArrayInsn(String desc, int dims) {
+            failed = true;
+        }
+
+        public void visitEnd() {
+            if (returned && !failed)
+                table.put(name + desc, rewrite);
+        }
+    }
+
+}
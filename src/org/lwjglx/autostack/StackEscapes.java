@@ -0,0 +1,909 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Intraprocedural escape analysis of the stack memory allocated by a method, following "Escape Analysis for Java" by
+ * Choi et al. (see <code>doc/choi99escape.pdf</code>), but only distinguishing whether a value may refer to stack memory.
+ * <p>
+ * Values allocated on the stack, and references and <code>long</code> addresses derived from them, are tracked through
+ * locals and the operand stack along all control flow edges. Passing such a value to a method (the "ArgEscape" of the
+ * paper) is assumed to not retain it, as is the convention of the LWJGL API. The analysis determines whether the method
+ * allocates in its own frame at all, and whether stack memory may escape it by being returned or stored in a field or
+ * array. Methods of the JDK other than those of buffers and strings, such as of collections, are assumed to possibly
+ * retain the stack memory passed to them, which is then considered stored. So are methods outside of the JDK invoked
+ * on an object not referring to stack memory, or static methods taking such an address first, when passed stack
+ * memory: these include <code>PointerBuffer.put</code> and the setters of structs, which write the address into memory
+ * allocated elsewhere.
+ * <p>
+ * Allocations within an explicit frame pushed by the method itself do not need the frame of the method. Invocations of
+ * methods outside of the JDK and LWJGL may allocate in the frame of the method, unless they are known methods of the
+ * same class.
+ *
+ * @author Kai Burjack
+ */
+class StackEscapes {
+
+    /** The method allocates stack memory in its own frame. */
+    static final int ALLOCATES = 1;
+    /** Stack memory may be returned by the method. */
+    static final int RETURNS = 2;
+    /** Stack memory may be stored in a field or an array. */
+    static final int STORES = 4;
+
+    private static final String MEMORYSTACK = RewriteTable.MEMORYSTACK;
+
+    private static final Set<String> NON_ALLOCATING = new HashSet<String>(Arrays.asList("getPointer", "setPointer", "push", "pop", "close",
+            "getSize", "getFrameIndex", "getAddress", "getPointerAddress", "toString", "hashCode", "equals", "getClass"));
+
+    private StackEscapes() {
+    }
+
+    /**
+     * Analyze the stack memory allocated by the given method.
+     * 
+     * @param mn
+     *            the method
+     * @param className
+     *            the internal name of the class declaring the method
+     * @param classMethods
+     *            the name and descriptor of all methods of the class which use the stack
+     * @param allocatingMethods
+     *            the name and descriptor of those methods which allocate in the frame of their caller
+     * @return a combination of {@link #ALLOCATES}, {@link #RETURNS} and {@link #STORES}, or <code>-1</code> if the method
+     *         could not be analyzed
+     */
+    static int analyze(MethodNode mn, String className, Set<String> classMethods, Set<String> allocatingMethods) {
+        return new Analysis(mn, className, classMethods, allocatingMethods, null).run();
+    }
+
+    /**
+     * Find the allocations of the given method whose stack memory may be returned by it, which is the case if
+     * {@link #analyze(MethodNode, String, Set, Set) analyze} reports {@link #RETURNS}. Only allocations outside of
+     * explicit frames are considered.
+     * 
+     * @param mn
+     *            the method
+     * @param className
+     *            the internal name of the class declaring the method
+     * @param classMethods
+     *            the name and descriptor of all methods of the class which use the stack
+     * @param allocatingMethods
+     *            the name and descriptor of those methods which allocate in the frame of their caller
+     * @return for each method invocation, in order, whether it is such an allocation; or <code>null</code> if there
+     *         are none
+     */
+    static boolean[] returnedAllocations(MethodNode mn, String className, Set<String> classMethods, Set<String> allocatingMethods) {
+        Analysis analysis = new Analysis(mn, className, classMethods, allocatingMethods, null);
+        int escapes = analysis.run();
+        if (escapes == -1 || (escapes & RETURNS) == 0)
+            return null;
+        InsnList insns = mn.instructions;
+        boolean[] returned = null;
+        int invocations = 0;
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.getNext())
+            if (insn instanceof MethodInsnNode)
+                invocations++;
+        int invocation = 0;
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.getNext()) {
+            if (!(insn instanceof MethodInsnNode))
+                continue;
+            MethodInsnNode min = (MethodInsnNode) insn;
+            State s = analysis.states[insns.indexOf(insn)];
+            if (s != null && s.depth == 0 && !StackRegions.isRegionInsn(min.getOpcode(), min.owner, min.name) && analysis.isAllocation(min)) {
+                // Only taint the memory of this allocation
+                BitSet seeds = new BitSet();
+                seeds.set(insns.indexOf(insn));
+                Analysis seeded = new Analysis(mn, className, classMethods, allocatingMethods, seeds);
+                if ((seeded.run() & RETURNS) != 0) {
+                    if (returned == null)
+                        returned = new boolean[invocations];
+                    returned[invocation] = true;
+                }
+            }
+            invocation++;
+        }
+        return returned;
+    }
+
+    /**
+     * Determine before which of the given instructions the stack memory of the given allocation may still be used,
+     * which is when it may be referred to by a live local or the operand stack.
+     * 
+     * @param mn
+     *            the method
+     * @param className
+     *            the internal name of the class declaring the method
+     * @param classMethods
+     *            the name and descriptor of all methods of the class which use the stack
+     * @param allocatingMethods
+     *            the name and descriptor of those methods which allocate in the frame of their caller
+     * @param allocation
+     *            the index of the allocating instruction
+     * @param at
+     *            the indexes of the instructions to check
+     * @param live
+     *            the live locals before each instruction, as computed by {@link ControlFlow#liveLocals(MethodNode)}
+     * @return the instructions before which the memory may be used, which are all of them if it may be stored in a
+     *         field or an array or returned
+     */
+    static BitSet usedAt(MethodNode mn, String className, Set<String> classMethods, Set<String> allocatingMethods, int allocation, BitSet at,
+            BitSet[] live) {
+        BitSet seeds = new BitSet();
+        seeds.set(allocation);
+        Analysis analysis = new Analysis(mn, className, classMethods, allocatingMethods, seeds);
+        int escapes = analysis.run();
+        if (escapes == -1 || (escapes & (RETURNS | STORES)) != 0)
+            return (BitSet) at.clone();
+        BitSet used = new BitSet();
+        for (int i = at.nextSetBit(0); i >= 0; i = at.nextSetBit(i + 1))
+            if (isUsed(analysis.states[i], live[i]))
+                used.set(i);
+        return used;
+    }
+
+    /**
+     * Find the allocations of the given method before which the stack pointer can be reset to the one saved on entry to
+     * the method, so that they reuse the memory of earlier allocations. This is the case if no stack memory allocated in
+     * the frame of the method before is used afterwards, i.e. all of it is dead.
+     * <p>
+     * Only allocations outside of explicit frames, which may be executed after another allocation, are considered.
+     * Nothing is reset if stack memory may be stored in a field or an array.
+     * 
+     * @param mn
+     *            the method
+     * @param className
+     *            the internal name of the class declaring the method
+     * @param classMethods
+     *            the name and descriptor of all methods of the class which use the stack
+     * @param allocatingMethods
+     *            the name and descriptor of those methods which allocate in the frame of their caller
+     * @param slices
+     *            the allocations replaced by slices of a combined allocation, as determined by
+     *            {@link ConstantAllocations#analyze(MethodNode, String, Set, Set, boolean[], boolean)}, or <code>null</code>
+     * @return for each method invocation, in order, whether the stack pointer is reset before it; or <code>null</code>
+     *         if there are no such invocations
+     */
+    static boolean[] reusedFrames(MethodNode mn, String className, Set<String> classMethods, Set<String> allocatingMethods,
+            ConstantAllocations.Slice[] slices) {
+        Analysis analysis = new Analysis(mn, className, classMethods, allocatingMethods, null);
+        if (analysis.run() == -1)
+            return null;
+        InsnList insns = mn.instructions;
+        BitSet seeds = new BitSet();
+        BitSet candidates = new BitSet();
+        int invocation = 0;
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.getNext()) {
+            if (!(insn instanceof MethodInsnNode))
+                continue;
+            MethodInsnNode min = (MethodInsnNode) insn;
+            int i = insns.indexOf(insn);
+            State s = analysis.states[i];
+            if (s != null && s.depth == 0 && !StackRegions.isRegionInsn(min.getOpcode(), min.owner, min.name)) {
+                if (analysis.isAllocation(min)) {
+                    seeds.set(i);
+                    // Slices after the first of their run do not allocate themselves
+                    if (slices == null || slices[invocation] == null || slices[invocation].run != null)
+                        candidates.set(i);
+                } else if (analysis.mayAllocate(min)) {
+                    seeds.set(i);
+                }
+            }
+            invocation++;
+        }
+        int invocations = invocation;
+        candidates.and(ControlFlow.reachableFrom(mn, seeds));
+        if (candidates.isEmpty())
+            return null;
+        Analysis seeded = new Analysis(mn, className, classMethods, allocatingMethods, seeds);
+        int escapes = seeded.run();
+        if (escapes == -1 || (escapes & STORES) != 0)
+            return null;
+        BitSet[] live = ControlFlow.liveLocals(mn);
+        boolean[] reused = null;
+        invocation = 0;
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.getNext()) {
+            if (!(insn instanceof MethodInsnNode))
+                continue;
+            int i = insns.indexOf(insn);
+            if (candidates.get(i) && !isUsed(seeded.states[i], live[i])) {
+                if (reused == null)
+                    reused = new boolean[invocations];
+                reused[invocation] = true;
+            }
+            invocation++;
+        }
+        return reused;
+    }
+
+    /**
+     * Determine whether the given invocation allocates stack memory, either on the thread's stack, on a given stack or
+     * in the frame of the invoking method of the given class.
+     */
+    static boolean isAllocation(int opcode, String owner, String name, String desc, String className, Set<String> allocatingMethods) {
+        if (owner.equals(MEMORYSTACK))
+            return opcode == INVOKEVIRTUAL ? !NON_ALLOCATING.contains(name) : !name.equals("stackGet") && RewriteTable.isStackMethod(owner, name);
+        if (opcode == INVOKESTATIC && RewriteTable.isStackMethod(owner, name))
+            return true;
+        // Such as allocating a struct via Struct.malloc(MemoryStack)
+        if (desc.contains("L" + MEMORYSTACK + ";"))
+            return true;
+        return owner.equals(className) && allocatingMethods.contains(name + desc);
+    }
+
+    /**
+     * Determine whether the given invocation of a method which is not known to allocate may allocate in the frame of the
+     * invoking method of the given class, which is assumed for all methods outside of the JDK and LWJGL, unless they are
+     * known methods of the same class.
+     */
+    static boolean mayAllocate(String owner, String name, String desc, String className, Set<String> classMethods) {
+        if (owner.equals(className))
+            return !classMethods.contains(name + desc);
+        return !owner.startsWith("java/") && !owner.startsWith("javax/") && !owner.startsWith("jdk/") && !owner.startsWith("sun/")
+                && !owner.startsWith("org/lwjgl/") && !owner.startsWith("[");
+    }
+
+    /**
+     * The loops of a method which use a stack frame per iteration.
+     */
+    static class LoopFrames {
+        /** The number of int locals needed to save the stack pointer of the loops. */
+        final int locals;
+        /** For each label, in order, the local to save the stack pointer in after it, or <code>-1</code>. */
+        final int[] saves;
+        /** For each jump instruction, in order, the local to restore the stack pointer from before it, or <code>-1</code>. */
+        final int[] restores;
+
+        LoopFrames(int locals, int[] saves, int[] restores) {
+            this.locals = locals;
+            this.saves = saves;
+            this.restores = restores;
+        }
+    }
+
+    /**
+     * Find the loops of the given method whose iterations can each use their own stack frame, because they allocate in
+     * the frame of the method and their stack memory is not used after the iteration.
+     * <p>
+     * The stack pointer is saved at the header of such a loop and restored on each jump back to it and on each
+     * <code>goto</code> leaving it, such as a <code>break</code>. Leaving the loop from its header needs no restore, since
+     * the memory of the previous iteration is already freed by then. Leaving it any other way keeps the memory of the
+     * last iteration until the method returns. Loops which jump back conditionally while staying in the loop are not
+     * supported.
+     * 
+     * @param mn
+     *            the method
+     * @param className
+     *            the internal name of the class declaring the method
+     * @param classMethods
+     *            the name and descriptor of all methods of the class which use the stack
+     * @param allocatingMethods
+     *            the name and descriptor of those methods which allocate in the frame of their caller
+     * @param force
+     *            whether to also use a frame per iteration if the stack memory may be used after an iteration
+     * @return the loops, or <code>null</code> if there are none
+     */
+    static LoopFrames loopFrames(MethodNode mn, String className, Set<String> classMethods, Set<String> allocatingMethods, boolean force) {
+        List<ControlFlow.Loop> loops = ControlFlow.loops(mn);
+        if (loops.isEmpty())
+            return null;
+        Analysis analysis = new Analysis(mn, className, classMethods, allocatingMethods, null);
+        if (analysis.run() == -1)
+            return null;
+        InsnList insns = mn.instructions;
+        BitSet[] live = null;
+        List<ControlFlow.Loop> framed = new ArrayList<ControlFlow.Loop>();
+        for (ControlFlow.Loop loop : loops) {
+            BitSet seeds = new BitSet();
+            boolean allocates = false;
+            for (int i = loop.body.nextSetBit(0); i >= 0; i = loop.body.nextSetBit(i + 1)) {
+                AbstractInsnNode insn = insns.get(i);
+                State s = analysis.states[i];
+                if (!(insn instanceof MethodInsnNode) || s == null || s.depth != 0)
+                    continue;
+                MethodInsnNode min = (MethodInsnNode) insn;
+                if (StackRegions.isRegionInsn(min.getOpcode(), min.owner, min.name))
+                    continue;
+                if (analysis.isAllocation(min)) {
+                    allocates = true;
+                    seeds.set(i);
+                } else if (analysis.mayAllocate(min)) {
+                    seeds.set(i);
+                }
+            }
+            if (!allocates || analysis.states[loop.header] == null || !hasSupportedJumps(insns, loop))
+                continue;
+            if (!force) {
+                Analysis seeded = new Analysis(mn, className, classMethods, allocatingMethods, seeds);
+                if ((seeded.run() & STORES) != 0)
+                    continue;
+                if (live == null)
+                    live = ControlFlow.liveLocals(mn);
+                if (isUsedAfterIteration(insns, loop, seeded.states, live))
+                    continue;
+            }
+            framed.add(loop);
+        }
+        if (framed.isEmpty())
+            return null;
+        int labels = 0, jumps = 0;
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn instanceof LabelNode)
+                labels++;
+            else if (insn instanceof JumpInsnNode)
+                jumps++;
+        }
+        int[] saves = new int[labels];
+        int[] restores = new int[jumps];
+        Arrays.fill(saves, -1);
+        Arrays.fill(restores, -1);
+        int label = 0, jump = 0;
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.getNext()) {
+            int i = insns.indexOf(insn);
+            if (insn instanceof LabelNode) {
+                for (int l = 0; l < framed.size(); l++)
+                    if (framed.get(l).header == i)
+                        saves[label] = l;
+                label++;
+            } else if (insn instanceof JumpInsnNode) {
+                // Restore the frame of the outermost loop the jump leaves or jumps back to the header of
+                int target = insns.indexOf(((JumpInsnNode) insn).label);
+                int outermost = -1;
+                for (int l = 0; l < framed.size(); l++) {
+                    ControlFlow.Loop loop = framed.get(l);
+                    boolean exits = loop.body.get(i)
+                            && (target == loop.header || insn.getOpcode() == GOTO && !loop.body.get(target));
+                    if (exits && (outermost == -1 || loop.body.cardinality() > framed.get(outermost).body.cardinality()))
+                        outermost = l;
+                }
+                restores[jump] = outermost;
+                jump++;
+            }
+        }
+        return new LoopFrames(framed.size(), saves, restores);
+    }
+
+    /**
+     * Determine whether all jumps back to the header of the given loop either are a <code>goto</code> or leave the loop
+     * when not taken, so that the stack pointer can be restored right before them.
+     */
+    private static boolean hasSupportedJumps(InsnList insns, ControlFlow.Loop loop) {
+        for (int i = loop.body.nextSetBit(0); i >= 0; i = loop.body.nextSetBit(i + 1)) {
+            AbstractInsnNode insn = insns.get(i);
+            if (insn instanceof TableSwitchInsnNode || insn instanceof LookupSwitchInsnNode) {
+                for (LabelNode l : labels(insn))
+                    if (insns.indexOf(l) == loop.header)
+                        return false;
+            } else if (insn instanceof JumpInsnNode && insns.indexOf(((JumpInsnNode) insn).label) == loop.header) {
+                if (insn.getOpcode() != GOTO && loop.body.get(i + 1))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<LabelNode> labels(AbstractInsnNode insn) {
+        List<LabelNode> labels = new ArrayList<LabelNode>();
+        if (insn instanceof TableSwitchInsnNode) {
+            labels.addAll(((TableSwitchInsnNode) insn).labels);
+            labels.add(((TableSwitchInsnNode) insn).dflt);
+        } else {
+            labels.addAll(((LookupSwitchInsnNode) insn).labels);
+            labels.add(((LookupSwitchInsnNode) insn).dflt);
+        }
+        return labels;
+    }
+
+    /**
+     * Determine whether the stack memory of an iteration of the given loop may be used after the stack pointer is
+     * restored, which is when it is live at the header or at the target of a <code>goto</code> leaving the loop.
+     */
+    private static boolean isUsedAfterIteration(InsnList insns, ControlFlow.Loop loop, State[] states, BitSet[] live) {
+        if (isUsed(states[loop.header], live[loop.header]))
+            return true;
+        for (int i = loop.body.nextSetBit(0); i >= 0; i = loop.body.nextSetBit(i + 1)) {
+            AbstractInsnNode insn = insns.get(i);
+            if (insn.getOpcode() != GOTO)
+                continue;
+            int target = insns.indexOf(((JumpInsnNode) insn).label);
+            if (!loop.body.get(target) && isUsed(states[target], live[target]))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isUsed(State s, BitSet live) {
+        if (s == null)
+            return false;
+        for (int i = 0; i < s.top; i++)
+            if (s.stack[i])
+                return true;
+        for (int var = live.nextSetBit(0); var >= 0; var = live.nextSetBit(var + 1))
+            if (var < s.locals.length && s.locals[var])
+                return true;
+        return false;
+    }
+
+    /**
+     * The state before an instruction: for each local and each operand stack word whether it may refer to stack memory,
+     * and the number of explicit frames pushed.
+     */
+    private static class State {
+        final boolean[] locals;
+        boolean[] stack;
+        int top;
+        int depth;
+
+        State(int maxLocals, int maxStack) {
+            locals = new boolean[maxLocals];
+            stack = new boolean[maxStack];
+        }
+
+        State(State s) {
+            locals = s.locals.clone();
+            stack = s.stack.clone();
+            top = s.top;
+            depth = s.depth;
+        }
+
+        boolean merge(State s) {
+            boolean changed = false;
+            for (int i = 0; i < locals.length; i++) {
+                if (s.locals[i] && !locals[i]) {
+                    locals[i] = true;
+                    changed = true;
+                }
+            }
+            for (int i = 0; i < top; i++) {
+                if (s.stack[i] && !stack[i]) {
+                    stack[i] = true;
+                    changed = true;
+                }
+            }
+            if (s.depth < depth) {
+                // Assume to be outside of the explicit frame when not sure
+                depth = s.depth;
+                changed = true;
+            }
+            return changed;
+        }
+
+        void push(boolean tainted) {
+            stack[top++] = tainted;
+        }
+
+        void push(boolean tainted, int size) {
+            for (int i = 0; i < size; i++)
+                push(tainted);
+        }
+
+        boolean pop(int size) {
+            boolean tainted = false;
+            for (int i = 0; i < size; i++)
+                tainted |= stack[--top];
+            return tainted;
+        }
+
+        boolean peek(int word) {
+            return stack[top - 1 - word];
+        }
+    }
+
+    private static class Analysis {
+        final MethodNode mn;
+        final String className;
+        final Set<String> classMethods;
+        final Set<String> allocatingMethods;
+        final BitSet seeds;
+        final InsnList insns;
+        final State[] states;
+        final Deque<Integer> work = new ArrayDeque<Integer>();
+        int result;
+
+        Analysis(MethodNode mn, String className, Set<String> classMethods, Set<String> allocatingMethods, BitSet seeds) {
+            this.mn = mn;
+            this.seeds = seeds;
+            this.className = className;
+            this.classMethods = classMethods;
+            this.allocatingMethods = allocatingMethods;
+            this.insns = mn.instructions;
+            this.states = new State[insns.size()];
+        }
+
+        int run() {
+            if (insns.size() == 0)
+                return 0;
+            flow(0, new State(mn.maxLocals, mn.maxStack));
+            while (!work.isEmpty()) {
+                int i = work.poll().intValue();
+                AbstractInsnNode insn = insns.get(i);
+                int opcode = insn.getOpcode();
+                if (opcode == JSR || opcode == RET)
+                    return -1;
+                State s = new State(states[i]);
+                if (opcode != -1)
+                    execute(insn, s);
+                if (opcode != -1 && canThrow(opcode))
+                    flowToHandlers(i, states[i]);
+                if (insn instanceof JumpInsnNode) {
+                    flow(insns.indexOf(((JumpInsnNode) insn).label), s);
+                    if (opcode == GOTO)
+                        continue;
+                } else if (insn instanceof TableSwitchInsnNode) {
+                    TableSwitchInsnNode tsin = (TableSwitchInsnNode) insn;
+                    flow(insns.indexOf(tsin.dflt), s);
+                    for (LabelNode l : tsin.labels)
+                        flow(insns.indexOf(l), s);
+                    continue;
+                } else if (insn instanceof LookupSwitchInsnNode) {
+                    LookupSwitchInsnNode lsin = (LookupSwitchInsnNode) insn;
+                    flow(insns.indexOf(lsin.dflt), s);
+                    for (LabelNode l : lsin.labels)
+                        flow(insns.indexOf(l), s);
+                    continue;
+                } else if (opcode >= IRETURN && opcode <= RETURN || opcode == ATHROW) {
+                    continue;
+                }
+                if (i + 1 < states.length)
+                    flow(i + 1, s);
+            }
+            return result;
+        }
+
+        private void flow(int i, State s) {
+            if (states[i] == null) {
+                states[i] = new State(s);
+                work.add(Integer.valueOf(i));
+            } else if (states[i].merge(s)) {
+                work.add(Integer.valueOf(i));
+            }
+        }
+
+        private void flowToHandlers(int i, State s) {
+            List<TryCatchBlockNode> tcbs = mn.tryCatchBlocks;
+            for (int t = 0; t < tcbs.size(); t++) {
+                TryCatchBlockNode tcb = tcbs.get(t);
+                if (i < insns.indexOf(tcb.start) || i >= insns.indexOf(tcb.end))
+                    continue;
+                State h = new State(s);
+                h.top = 0;
+                h.push(false);
+                flow(insns.indexOf(tcb.handler), h);
+            }
+        }
+
+        private static boolean canThrow(int opcode) {
+            switch (opcode) {
+            case NOP: case ACONST_NULL: case ICONST_M1: case ICONST_0: case ICONST_1: case ICONST_2: case ICONST_3:
+            case ICONST_4: case ICONST_5: case LCONST_0: case LCONST_1: case FCONST_0: case FCONST_1: case FCONST_2:
+            case DCONST_0: case DCONST_1: case BIPUSH: case SIPUSH: case ILOAD: case LLOAD: case FLOAD: case DLOAD:
+            case ALOAD: case ISTORE: case LSTORE: case FSTORE: case DSTORE: case ASTORE: case POP: case POP2: case DUP:
+            case DUP_X1: case DUP_X2: case DUP2: case DUP2_X1: case DUP2_X2: case SWAP: case IINC: case GOTO:
+                return false;
+            default:
+                return true;
+            }
+        }
+
+        private void execute(AbstractInsnNode insn, State s) {
+            int opcode = insn.getOpcode();
+            boolean a, b, c, d;
+            switch (opcode) {
+            case NOP: case GOTO: case IINC:
+                break;
+            case ACONST_NULL: case ICONST_M1: case ICONST_0: case ICONST_1: case ICONST_2: case ICONST_3: case ICONST_4:
+            case ICONST_5: case FCONST_0: case FCONST_1: case FCONST_2: case BIPUSH: case SIPUSH: case ILOAD: case FLOAD:
+            case NEW:
+                s.push(false);
+                break;
+            case LCONST_0: case LCONST_1: case DCONST_0: case DCONST_1: case DLOAD:
+                s.push(false, 2);
+                break;
+            case LDC: {
+                Object cst = ((LdcInsnNode) insn).cst;
+                s.push(false, cst instanceof Long || cst instanceof Double ? 2 : 1);
+                break;
+            }
+            case ALOAD:
+                s.push(s.locals[((VarInsnNode) insn).var]);
+                break;
+            case LLOAD:
+                s.push(s.locals[((VarInsnNode) insn).var], 2);
+                break;
+            case ASTORE:
+                s.locals[((VarInsnNode) insn).var] = s.pop(1);
+                break;
+            case LSTORE:
+                s.locals[((VarInsnNode) insn).var] = s.pop(2);
+                break;
+            case ISTORE: case FSTORE:
+                s.pop(1);
+                s.locals[((VarInsnNode) insn).var] = false;
+                break;
+            case DSTORE:
+                s.pop(2);
+                s.locals[((VarInsnNode) insn).var] = false;
+                break;
+            case IALOAD: case FALOAD: case BALOAD: case CALOAD: case SALOAD:
+                s.pop(2);
+                s.push(false);
+                break;
+            case LALOAD: case DALOAD:
+                s.pop(2);
+                s.push(false, 2);
+                break;
+            case AALOAD:
+                s.pop(1);
+                s.push(s.pop(1));
+                break;
+            case IASTORE: case FASTORE: case BASTORE: case CASTORE: case SASTORE:
+                s.pop(3);
+                break;
+            case DASTORE:
+                s.pop(4);
+                break;
+            case AASTORE:
+                store(s.pop(1));
+                s.pop(2);
+                break;
+            case LASTORE:
+                store(s.pop(2));
+                s.pop(2);
+                break;
+            case POP: case MONITORENTER: case MONITOREXIT: case ATHROW:
+            case IFEQ: case IFNE: case IFLT: case IFGE: case IFGT: case IFLE: case IFNULL: case IFNONNULL:
+            case TABLESWITCH: case LOOKUPSWITCH: case IRETURN: case FRETURN:
+                s.pop(1);
+                break;
+            case POP2: case DRETURN:
+            case IF_ICMPEQ: case IF_ICMPNE: case IF_ICMPLT: case IF_ICMPGE: case IF_ICMPGT: case IF_ICMPLE: case IF_ACMPEQ:
+            case IF_ACMPNE:
+                s.pop(2);
+                break;
+            case ARETURN:
+                if (s.pop(1))
+                    result |= RETURNS;
+                break;
+            case LRETURN:
+                if (s.pop(2))
+                    result |= RETURNS;
+                break;
+            case RETURN:
+                break;
+            case DUP:
+                s.push(s.peek(0));
+                break;
+            case DUP_X1:
+                a = s.pop(1); b = s.pop(1);
+                s.push(a); s.push(b); s.push(a);
+                break;
+            case DUP_X2:
+                a = s.pop(1); b = s.pop(1); c = s.pop(1);
+                s.push(a); s.push(c); s.push(b); s.push(a);
+                break;
+            case DUP2:
+                a = s.peek(1); b = s.peek(0);
+                s.push(a); s.push(b);
+                break;
+            case DUP2_X1:
+                a = s.pop(1); b = s.pop(1); c = s.pop(1);
+                s.push(b); s.push(a); s.push(c); s.push(b); s.push(a);
+                break;
+            case DUP2_X2:
+                a = s.pop(1); b = s.pop(1); c = s.pop(1); d = s.pop(1);
+                s.push(b); s.push(a); s.push(d); s.push(c); s.push(b); s.push(a);
+                break;
+            case SWAP:
+                a = s.pop(1); b = s.pop(1);
+                s.push(a); s.push(b);
+                break;
+            case IADD: case ISUB: case IMUL: case IDIV: case IREM: case ISHL: case ISHR: case IUSHR: case IAND: case IOR:
+            case IXOR: case FADD: case FSUB: case FMUL: case FDIV: case FREM: case FCMPL: case FCMPG:
+                s.pop(2);
+                s.push(false);
+                break;
+            case LADD: case LSUB: case LMUL: case LDIV: case LREM: case LAND: case LOR: case LXOR:
+                // Pointer arithmetic
+                s.push(s.pop(4), 2);
+                break;
+            case LSHL: case LSHR: case LUSHR:
+                s.pop(1);
+                s.push(s.pop(2), 2);
+                break;
+            case DADD: case DSUB: case DMUL: case DDIV: case DREM:
+                s.pop(4);
+                s.push(false, 2);
+                break;
+            case LCMP: case DCMPL: case DCMPG:
+                s.pop(4);
+                s.push(false);
+                break;
+            case INEG: case FNEG: case I2F: case F2I: case I2B: case I2C: case I2S: case ARRAYLENGTH: case INSTANCEOF:
+            case NEWARRAY: case ANEWARRAY:
+                s.pop(1);
+                s.push(false);
+                break;
+            case LNEG: case DNEG: case L2D: case D2L:
+                s.pop(2);
+                s.push(false, 2);
+                break;
+            case I2L: case I2D: case F2L: case F2D:
+                s.pop(1);
+                s.push(false, 2);
+                break;
+            case L2I: case L2F: case D2I: case D2F:
+                s.pop(2);
+                s.push(false);
+                break;
+            case CHECKCAST:
+                s.push(s.pop(1));
+                break;
+            case GETSTATIC:
+                s.push(false, Type.getType(((FieldInsnNode) insn).desc).getSize());
+                break;
+            case PUTSTATIC:
+                store(s.pop(Type.getType(((FieldInsnNode) insn).desc).getSize()));
+                break;
+            case GETFIELD: {
+                Type type = Type.getType(((FieldInsnNode) insn).desc);
+                s.push(s.pop(1) && mayRefer(type), type.getSize());
+                break;
+            }
+            case PUTFIELD:
+                store(s.pop(Type.getType(((FieldInsnNode) insn).desc).getSize()));
+                s.pop(1);
+                break;
+            case MULTIANEWARRAY:
+                s.pop(((MultiANewArrayInsnNode) insn).dims);
+                s.push(false);
+                break;
+            case INVOKEDYNAMIC: {
+                InvokeDynamicInsnNode din = (InvokeDynamicInsnNode) insn;
+                // A lambda capturing stack memory refers to it
+                s.push(s.pop(argumentsSize(din.desc)), Type.getReturnType(din.desc).getSize());
+                break;
+            }
+            case INVOKEVIRTUAL: case INVOKESPECIAL: case INVOKESTATIC: case INVOKEINTERFACE:
+                invoke((MethodInsnNode) insn, s);
+                break;
+            default:
+                throw new AssertionError("Unhandled opcode: " + opcode);
+            }
+        }
+
+        private void invoke(MethodInsnNode min, State s) {
+            Type[] args = Type.getArgumentTypes(min.desc);
+            boolean isStatic = min.getOpcode() == INVOKESTATIC;
+            // Whether any argument other than the target written to refers to stack memory, and whether the target does
+            boolean tainted = false, target = false;
+            for (int a = args.length - 1; a >= 0; a--) {
+                boolean arg = s.pop(args[a].getSize());
+                if (isStatic && a == 0 && args[a].getSort() == Type.LONG)
+                    target = arg;
+                else
+                    tainted |= arg;
+            }
+            if (!isStatic)
+                target = s.pop(1);
+            boolean hasTarget = !isStatic || args.length > 0 && args[0].getSort() == Type.LONG;
+            Type ret = Type.getReturnType(min.desc);
+            if (StackRegions.isRegionInsn(min.getOpcode(), min.owner, min.name)) {
+                if (min.name.equals("stackPush") || min.name.equals("push"))
+                    s.depth++;
+                else if (s.depth > 0)
+                    s.depth--;
+                tainted = false;
+            } else if (isAllocation(min)) {
+                if (s.depth == 0)
+                    result |= ALLOCATES;
+                // The allocated memory may hold the addresses passed to it, such as with MemoryStack.pointers
+                tainted |= seeds == null || seeds.get(insns.indexOf(min));
+            } else {
+                if (tainted && hasTarget && !target && !isJdk(min.owner)) {
+                    // Such as PointerBuffer.put or a struct setter writing the address into memory allocated elsewhere
+                    result |= STORES;
+                } else if (tainted && mayRetain(min)) {
+                    result |= STORES;
+                }
+                tainted |= target;
+                if (mayAllocate(min)) {
+                    result |= ALLOCATES;
+                    tainted = seeds != null && seeds.get(insns.indexOf(min));
+                }
+            }
+            s.push(tainted && mayReturn(min, ret), ret.getSize());
+        }
+
+        /**
+         * Whether the given invocation may return the stack memory passed to it or allocated by it. Other than
+         * allocations, only invocations returning objects or named like <code>memAddress</code> are considered.
+         */
+        private boolean mayReturn(MethodInsnNode min, Type ret) {
+            if (ret.getSort() == Type.LONG)
+                return isAllocation(min) || min.name.contains("ddress");
+            return ret.getSort() == Type.ARRAY || ret.getSort() == Type.OBJECT && !ret.getInternalName().equals("java/lang/String");
+        }
+
+        boolean isAllocation(MethodInsnNode min) {
+            return StackEscapes.isAllocation(min.getOpcode(), min.owner, min.name, min.desc, className, allocatingMethods);
+        }
+
+        private static boolean isJdk(String owner) {
+            return owner.startsWith("java/") || owner.startsWith("javax/") || owner.startsWith("jdk/") || owner.startsWith("sun/")
+                    || owner.startsWith("[");
+        }
+
+        /**
+         * Whether the given invocation of a method not allocating on the stack may retain the memory passed to it, which is
+         * assumed for the JDK, such as for collections, except for buffers and strings.
+         */
+        private static boolean mayRetain(MethodInsnNode min) {
+            return min.owner.startsWith("java/") && !min.owner.startsWith("java/nio/") && !min.owner.startsWith("java/lang/")
+                    && !min.owner.startsWith("java/io/");
+        }
+
+        boolean mayAllocate(MethodInsnNode min) {
+            return StackEscapes.mayAllocate(min.owner, min.name, min.desc, className, classMethods);
+        }
+
+        private void store(boolean tainted) {
+            if (tainted)
+                result |= STORES;
+        }
+
+        private static boolean mayRefer(Type type) {
+            return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY || type.getSort() == Type.LONG;
+        }
+
+        private static int argumentsSize(String desc) {
+            return (Type.getArgumentsAndReturnSizes(desc) >> 2) - 1;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Iterator;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Determines how the explicit stack frames of a method, pushed via <code>MemoryStack.stackPush()</code> and popped via
+ * <code>MemoryStack.stackPop()</code> or by closing the pushed stack, such as in
+ * <code>try (MemoryStack s = stackPush()) {...}</code>, can be lowered to saving and restoring the stack pointer in int
+ * locals.
+ * <p>
+ * The frame depth and the locals holding a pushed stack are computed for every instruction by following all control
+ * flow edges. The frame pushed at depth <code>d</code> saves the stack pointer in the <code>d</code>-th int local and is
+ * popped by restoring the pointer from it. Stacks are only popped via locals holding a pushed stack, which are known to
+ * never be <code>null</code>. If the depth of any instruction is ambiguous, or frames are pushed or popped in any other
+ * way, the frames of the method are not lowered at all.
+ *
+ * @author Kai Burjack
+ */
+class StackRegions {
+
+    private static final String MEMORYSTACK = RewriteTable.MEMORYSTACK;
+
+    private StackRegions() {
+    }
+
+    /**
+     * Determine whether the given invocation pushes or pops a stack frame.
+     */
+    static boolean isRegionInsn(int opcode, String owner, String name) {
+        if (!owner.equals(MEMORYSTACK))
+            return false;
+        if (opcode == INVOKESTATIC)
+            return name.equals("stackPush") || name.equals("stackPop");
+        return opcode == INVOKEVIRTUAL && (name.equals("push") || name.equals("pop") || name.equals("close"));
+    }
+
+    /**
+     * Analyze the stack frames pushed and popped by the given method.
+     * 
+     * @param mn
+     *            the method
+     * @return for each invocation satisfying {@link #isRegionInsn(int, String, String)}, in order, the number of the int
+     *         local to save the stack pointer to or restore it from, or <code>-1</code> if the invocation is unreachable;
+     *         or <code>null</code> if the method does not push any frames or they cannot be lowered
+     */
+    static int[] analyze(MethodNode mn) {
+        InsnList insns = mn.instructions;
+        int regionInsns = 0;
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.getNext())
+            if (isRegionInsn(insn))
+                regionInsns++;
+        if (regionInsns == 0)
+            return null;
+        Analysis analysis = new Analysis(mn);
+        if (!analysis.run())
+            return null;
+        int[] regions = new int[regionInsns];
+        int r = 0;
+        for (int i = 0; i < insns.size(); i++) {
+            AbstractInsnNode insn = insns.get(i);
+            if (!isRegionInsn(insn))
+                continue;
+            MethodInsnNode min = (MethodInsnNode) insn;
+            int depth = analysis.depths[i];
+            if (depth == -1) {
+                regions[r++] = -1;
+            } else if (min.getOpcode() == INVOKEVIRTUAL && (min.name.equals("push") || !analysis.isPushedLoad(insn.getPrevious(), i))) {
+                /* Frames pushed or popped on any other stack than one returned by stackPush() cannot be paired */
+                return null;
+            } else {
+                regions[r++] = isPush(min) ? depth : depth - 1;
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Remove the exception handlers of the given method which only cover instructions that cannot throw once its frames
+     * are lowered, such as the handlers javac emits around closing a pushed stack to add suppressed exceptions. The code
+     * of such handlers remains, but is unreachable.
+     * 
+     * @param regions
+     *            the result of {@link #analyze(MethodNode)} for the method
+     */
+    static void removeDeadHandlers(MethodNode mn, int[] regions) {
+        if (regions == null)
+            return;
+        for (Iterator<TryCatchBlockNode> it = mn.tryCatchBlocks.iterator(); it.hasNext();) {
+            TryCatchBlockNode tcb = it.next();
+            boolean canThrow = false;
+            for (AbstractInsnNode insn = tcb.start; insn != tcb.end && !canThrow; insn = insn.getNext())
+                canThrow = canThrow(insn);
+            if (!canThrow)
+                it.remove();
+        }
+    }
+
+    private static boolean isRegionInsn(AbstractInsnNode insn) {
+        if (!(insn instanceof MethodInsnNode))
+            return false;
+        MethodInsnNode min = (MethodInsnNode) insn;
+        return isRegionInsn(min.getOpcode(), min.owner, min.name);
+    }
+
+    private static boolean isPush(MethodInsnNode min) {
+        return min.name.equals("stackPush");
+    }
+
+    /**
+     * Determine whether the given instruction can throw an exception.
+     * <p>
+     * Restoring the stack pointer when popping a frame cannot throw. Pushing a frame can, before the frame is pushed.
+     */
+    private static boolean canThrow(AbstractInsnNode insn) {
+        int opcode = insn.getOpcode();
+        switch (insn.getType()) {
+        case AbstractInsnNode.INSN:
+            return opcode >= IALOAD && opcode <= SALOAD || opcode >= IASTORE && opcode <= SASTORE || opcode == IDIV || opcode == LDIV
+                    || opcode == IREM || opcode == LREM || opcode == ARRAYLENGTH || opcode == ATHROW || opcode == MONITORENTER
+                    || opcode == MONITOREXIT;
+        case AbstractInsnNode.INT_INSN:
+            return opcode == NEWARRAY;
+        case AbstractInsnNode.METHOD_INSN:
+            return !isRegionInsn(insn) || isPush((MethodInsnNode) insn);
+        case AbstractInsnNode.FIELD_INSN:
+        case AbstractInsnNode.TYPE_INSN:
+        case AbstractInsnNode.LDC_INSN:
+        case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+        case AbstractInsnNode.MULTIANEWARRAY_INSN:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Computes the frame depth and the locals holding a pushed stack before each instruction.
+     */
+    private static class Analysis {
+        private final MethodNode mn;
+        private final InsnList insns;
+        /** The frame depth before each instruction, or <code>-1</code> if it is unreachable */
+        final int[] depths;
+        /** The locals holding a pushed stack before each instruction */
+        private final BitSet[] pushed;
+        private final Deque<Integer> worklist = new ArrayDeque<Integer>();
+
+        Analysis(MethodNode mn) {
+            this.mn = mn;
+            this.insns = mn.instructions;
+            this.depths = new int[insns.size()];
+            this.pushed = new BitSet[insns.size()];
+            Arrays.fill(depths, -1);
+        }
+
+        boolean isPushedLoad(AbstractInsnNode insn, int i) {
+            return insn != null && insn.getOpcode() == ALOAD && pushed[i].get(((VarInsnNode) insn).var);
+        }
+
+        boolean run() {
+            if (insns.size() == 0 || !merge(0, 0, new BitSet()))
+                return false;
+            while (!worklist.isEmpty()) {
+                int i = worklist.pop().intValue();
+                AbstractInsnNode insn = insns.get(i);
+                int opcode = insn.getOpcode();
+                int depth = depths[i];
+                BitSet locals = pushed[i];
+                if (canThrow(insn)) {
+                    /* Exceptions are caught by the first matching handler, so stop at the first handler catching all of them */
+                    for (TryCatchBlockNode tcb : mn.tryCatchBlocks) {
+                        if (i < insns.indexOf(tcb.start) || i >= insns.indexOf(tcb.end))
+                            continue;
+                        if (!merge(insns.indexOf(tcb.handler), depth, locals))
+                            return false;
+                        if (tcb.type == null || tcb.type.equals("java/lang/Throwable"))
+                            break;
+                    }
+                }
+                if (isRegionInsn(insn)) {
+                    depth += isPush((MethodInsnNode) insn) ? 1 : -1;
+                    if (depth < 0)
+                        return false;
+                } else if (insn instanceof VarInsnNode && opcode >= ISTORE && opcode <= ASTORE) {
+                    int var = ((VarInsnNode) insn).var;
+                    locals = (BitSet) locals.clone();
+                    locals.clear(var, var + (opcode == LSTORE || opcode == DSTORE ? 2 : 1));
+                    AbstractInsnNode prev = insn.getPrevious();
+                    if (opcode == ASTORE && prev != null && isRegionInsn(prev) && isPush((MethodInsnNode) prev))
+                        locals.set(var);
+                }
+                if (opcode >= IRETURN && opcode <= RETURN) {
+                    if (depth != 0)
+                        return false;
+                } else if (opcode == ATHROW) {
+                    /* No successor */
+                } else if (insn instanceof JumpInsnNode) {
+                    if (opcode == JSR)
+                        return false;
+                    /* Pushed stacks are never null */
+                    boolean nullCheck = (opcode == IFNULL || opcode == IFNONNULL) && isPushedLoad(insn.getPrevious(), i);
+                    if (opcode != GOTO && !(nullCheck && opcode == IFNONNULL) && !merge(i + 1, depth, locals))
+                        return false;
+                    if (!(nullCheck && opcode == IFNULL) && !merge(insns.indexOf(((JumpInsnNode) insn).label), depth, locals))
+                        return false;
+                } else if (insn instanceof TableSwitchInsnNode) {
+                    TableSwitchInsnNode tsin = (TableSwitchInsnNode) insn;
+                    if (!merge(insns.indexOf(tsin.dflt), depth, locals))
+                        return false;
+                    for (LabelNode label : tsin.labels)
+                        if (!merge(insns.indexOf(label), depth, locals))
+                            return false;
+                } else if (insn instanceof LookupSwitchInsnNode) {
+                    LookupSwitchInsnNode lsin = (LookupSwitchInsnNode) insn;
+                    if (!merge(insns.indexOf(lsin.dflt), depth, locals))
+                        return false;
+                    for (LabelNode label : lsin.labels)
+                        if (!merge(insns.indexOf(label), depth, locals))
+                            return false;
+                } else if (opcode == RET) {
+                    return false;
+                } else if (i + 1 < insns.size() && !merge(i + 1, depth, locals)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Merge the given state into the state before the given instruction, which requires the same depth. A local only
+         * holds a pushed stack if it does so on all incoming edges.
+         */
+        private boolean merge(int i, int depth, BitSet locals) {
+            if (depths[i] == -1) {
+                depths[i] = depth;
+                pushed[i] = locals;
+                worklist.push(Integer.valueOf(i));
+                return true;
+            }
+            if (depths[i] != depth)
+                return false;
+            BitSet merged = (BitSet) pushed[i].clone();
+            merged.and(locals);
+            if (!merged.equals(pushed[i])) {
+                pushed[i] = merged;
+                worklist.push(Integer.valueOf(i));
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Finds the lambdas and method references of a method which are only ever invoked synchronously by the thread
+ * creating them, such as in <code>list.forEach(e -&gt; {...})</code>, and whose implementation methods are declared in
+ * the same class.
+ * <p>
+ * A lambda is considered synchronous if the functional object is directly passed to one of a few methods of the
+ * <code>java.util</code> collections and {@link java.util.Optional} which invoke it only before they return. Streams
+ * and the <code>java.util.concurrent</code> classes are excluded, since they may invoke it from other threads.
+ *
+ * @author Kai Burjack
+ */
+class SynchronousLambdas {
+
+    private static final Set<String> CONSUMERS = new HashSet<String>(Arrays.asList("forEach", "forEachRemaining", "removeIf",
+            "replaceAll", "sort", "setAll", "computeIfAbsent", "computeIfPresent", "compute", "merge", "ifPresent",
+            "ifPresentOrElse", "orElseGet", "map", "filter", "flatMap", "or"));
+
+    private SynchronousLambdas() {
+    }
+
+    /**
+     * Analyze the lambdas created by the given method.
+     * 
+     * @param mn
+     *            the method
+     * @param className
+     *            the internal name of the class declaring the method
+     * @return for each <code>invokedynamic</code> instruction, in order, the implementation method of the lambda if it
+     *         is synchronous, or <code>null</code>; or <code>null</code> if the method creates no synchronous lambda
+     */
+    static Handle[] analyze(MethodNode mn, String className) {
+        Handle[] lambdas = null;
+        int indy = 0;
+        for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn.getOpcode() != INVOKEDYNAMIC)
+                continue;
+            InvokeDynamicInsnNode din = (InvokeDynamicInsnNode) insn;
+            Handle impl = implMethod(din, className);
+            if (impl != null && isConsumer(nextInsn(insn))) {
+                if (lambdas == null)
+                    lambdas = new Handle[countIndys(mn)];
+                lambdas[indy] = impl;
+            }
+            indy++;
+        }
+        return lambdas;
+    }
+
+    /**
+     * Return the implementation method of the given lambda if it is declared in the given class and captures its
+     * receiver, if any, as first argument.
+     */
+    private static Handle implMethod(InvokeDynamicInsnNode din, String className) {
+        if (!din.bsm.getOwner().equals("java/lang/invoke/LambdaMetafactory") || din.bsmArgs.length < 3 || !(din.bsmArgs[1] instanceof Handle))
+            return null;
+        Handle impl = (Handle) din.bsmArgs[1];
+        if (!impl.getOwner().equals(className) || impl.isInterface())
+            return null;
+        switch (impl.getTag()) {
+        case H_INVOKESTATIC:
+            return impl;
+        case H_INVOKESPECIAL:
+        case H_INVOKEVIRTUAL:
+            // Unbound method references receive their receiver as first argument of the functional method
+            return Type.getArgumentTypes(din.desc).length > 0 ? impl : null;
+        default:
+            return null;
+        }
+    }
+
+    private static AbstractInsnNode nextInsn(AbstractInsnNode insn) {
+        insn = insn.getNext();
+        while (insn != null && insn.getOpcode() == -1)
+            insn = insn.getNext();
+        return insn;
+    }
+
+    private static boolean isConsumer(AbstractInsnNode insn) {
+        if (!(insn instanceof MethodInsnNode))
+            return false;
+        MethodInsnNode min = (MethodInsnNode) insn;
+        if (min.owner.equals("java/lang/Iterable"))
+            return min.name.equals("forEach");
+        return min.owner.startsWith("java/util/") && !min.owner.startsWith("java/util/stream/") && !min.owner.startsWith("java/util/concurrent/")
+                && CONSUMERS.contains(min.name);
+    }
+
+    private static int countIndys(MethodNode mn) {
+        int count = 0;
+        for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext())
+            if (insn.getOpcode() == INVOKEDYNAMIC)
+                count++;
+        return count;
+    }
+}
@@ -27,10 +27,24 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.jar.JarInputStream;
 import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 class Tool {
 
@@ -39,6 +53,22 @@ class Tool {
     private static boolean TRACE = getBooleanProperty("autostack.TRACE", false);
     private static boolean CHECK_STACK = getBooleanProperty("autostack.CHECK_STACK", false);
     private static boolean STACK_PARAM = getBooleanProperty("autostack.STACK_PARAM", false);
+    private static boolean LAZY_STACK = getBooleanProperty("autostack.LAZY_STACK", false);
+    private static boolean INFER_STACK = getBooleanProperty("autostack.INFER_STACK", false);
+    private static boolean FOLD_FRAMES = getBooleanProperty("autostack.FOLD_FRAMES", false);
+    private static boolean LOOP_STACK = getBooleanProperty("autostack.LOOP_STACK", false);
+    private static boolean COALESCE = getBooleanProperty("autostack.COALESCE", false);
+    private static boolean REUSE_STACK = getBooleanProperty("autostack.REUSE_STACK", false);
+    private static boolean WHOLE_PROGRAM = getBooleanProperty("autostack.WHOLE_PROGRAM", false);
+    private static boolean PARALLEL = getBooleanProperty("autostack.PARALLEL", false);
+    private static String COMPRESSION = System.getProperty("autostack.COMPRESSION", "9");
+    private static boolean STORED = "stored".equalsIgnoreCase(COMPRESSION);
+    private static int LEVEL = STORED ? 0 : Integer.parseInt(COMPRESSION);
+    private static String STATE = System.getProperty("autostack.STATE");
+    private static String CLASSLIST = System.getProperty("autostack.CLASSLIST");
+    private static String CLASSPATH = System.getProperty("autostack.CLASSPATH");
+
+    private static final int MAX_PENDING_PER_THREAD = 4;
 
     private static boolean getBooleanProperty(String prop, boolean def) {
         String value = System.getProperty(prop);
@@ -48,69 +78,398 @@ class Tool {
     }
 
     public static void main(String[] args) throws IOException {
-        if (args == null || args.length != 2) {
+        if (args == null || args.length < 1 || args.length > 2 || args.length == 1 && !isDirectories(args[0])) {
             System.out.println("Usage: java -jar autostack.jar input.jar output.jar");
+            System.out.println("       java -jar autostack.jar classes[" + File.pathSeparator + "classes...] [output-dir]");
+            System.out.println("Use -Dautostack.CLASSPATH=lwjgl.jar[" + File.pathSeparator + "...] if the input does not contain LWJGL.");
             System.exit(1);
             return;
         }
-        File inFile = new File(args[0]);
-        File outFile = new File(args[1]);
         Transformer transformer = new Transformer(Collections.<String>emptyList());
         transformer.setDebugRuntime(DEBUG_RUNTIME);
         transformer.setDebugTransform(DEBUG_TRANSFORM);
         transformer.setTrace(TRACE);
         transformer.setCheckStack(CHECK_STACK);
-        transformer.setStackAsParameter(STACK_PARAM);
+        transformer.setStackAsParameter(STACK_PARAM || WHOLE_PROGRAM);
+        transformer.setLazyStack(LAZY_STACK);
+        transformer.setInferStack(INFER_STACK);
+        transformer.setFoldFrames(FOLD_FRAMES);
+        transformer.setLoopStack(LOOP_STACK);
+        transformer.setCoalesce(COALESCE);
+        transformer.setReuseStack(REUSE_STACK);
+
+        URLClassLoader loader = rewriteTableLoader(args[0]);
+        RewriteTable rewriteTable = new RewriteTable(loader);
+        if (!rewriteTable.isMemoryStackFound())
+            System.err.println("[autostack] org.lwjgl.system.MemoryStack found neither in the input nor in autostack.CLASSPATH. "
+                    + "Invocations of methods allocating on the thread's stack are not rewritten.");
+        transformer.setRewriteTable(rewriteTable);
+        try {
+            transform(transformer, args);
+        } finally {
+            loader.close();
+        }
+    }
+
+    /**
+     * Create the class loader to read the LWJGL classes from, which the rewrites of stack allocations are derived from.
+     * These are searched in the input jar or class directories, in the class path given via
+     * <code>-Dautostack.CLASSPATH</code> and in the class path of the tool itself.
+     */
+    private static URLClassLoader rewriteTableLoader(String input) throws IOException {
+        List<URL> urls = new ArrayList<URL>();
+        for (String path : input.split(File.pathSeparator))
+            urls.add(new File(path).toURI().toURL());
+        if (CLASSPATH != null)
+            for (String path : CLASSPATH.split(File.pathSeparator))
+                urls.add(new File(path).toURI().toURL());
+        return new URLClassLoader(urls.toArray(new URL[urls.size()]), Tool.class.getClassLoader());
+    }
+
+    private static void transform(Transformer transformer, String[] args) throws IOException {
+        if (isDirectories(args[0])) {
+            List<File> roots = new ArrayList<File>();
+            for (String root : args[0].split(File.pathSeparator))
+                roots.add(new File(root));
+            File outDir = args.length == 2 ? new File(args[1]) : null;
+            File target = outDir != null ? outDir : roots.get(0);
+            if (CLASSLIST != null) {
+                System.err.println("[autostack] autostack.CLASSLIST requires a jar file as output, since class data sharing does not support class directories");
+                System.exit(1);
+                return;
+            }
+            if (WHOLE_PROGRAM) {
+                System.err.println("[autostack] autostack.WHOLE_PROGRAM requires a jar file as input, since class directories are transformed incrementally");
+                System.exit(1);
+                return;
+            }
+            File stateFile = STATE != null ? new File(STATE) : new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".autostack");
+            DirectoryTransformer directoryTransformer = new DirectoryTransformer(transformer, stateFile);
+            directoryTransformer.setDebugTransform(DEBUG_TRANSFORM);
+            directoryTransformer.setParallel(PARALLEL);
+            directoryTransformer.transform(roots, outDir);
+            return;
+        }
+
+        File inFile = new File(args[0]);
+        File outFile = new File(args[1]);
+        List<String> classList = CLASSLIST != null ? new ArrayList<String>() : null;
+
+        RawZip.Reader reader = RawZip.Reader.open(inFile);
+        if (WHOLE_PROGRAM)
+            transformer.setStackParamMethods(collectStackParamMethods(transformer, reader, inFile));
+        if (reader != null) {
+            try {
+                transformRaw(transformer, reader, outFile, classList);
+            } finally {
+                reader.close();
+            }
+            if (classList != null)
+                writeClassList(classList, new File(CLASSLIST));
+            return;
+        }
 
+        /* Fall back to re-compressing all entries for jar files not supported by RawZip */
         FileInputStream fis = new FileInputStream(inFile);
         JarInputStream jarIn = new JarInputStream(fis);
 
         FileOutputStream fos = new FileOutputStream(outFile);
-        JarOutputStream jarOut = new JarOutputStream(fos, jarIn.getManifest());
-        jarOut.setLevel(9);
+        boolean written = false;
+        try {
+            JarOutputStream jarOut = new JarOutputStream(fos, jarIn.getManifest());
+            if (STORED)
+                jarOut.setMethod(ZipOutputStream.STORED);
+            else
+                jarOut.setLevel(LEVEL);
+
+            if (PARALLEL)
+                transformParallel(transformer, jarIn, jarOut, classList);
+            else
+                transformSerial(transformer, jarIn, jarOut, classList);
+            jarOut.finish();
+            jarOut.flush();
+            jarOut.close();
+            written = true;
+        } finally {
+            fos.close();
+            jarIn.close();
+            fis.close();
+            /* Like transformRaw(), leave no incomplete output jar behind */
+            if (!written)
+                outFile.delete();
+        }
+        if (classList != null)
+            writeClassList(classList, new File(CLASSLIST));
+    }
+
+    /**
+     * Read all classes of the given jar to determine the methods which receive the stack as additional parameter, so that
+     * all of their invocations from transformed methods in the jar pass the stack instead of only those within the same
+     * class. The original methods delegating to them remain for all other callers, including reflection.
+     * 
+     * @param reader
+     *            the {@link RawZip.Reader} of the jar, or <code>null</code> to read the jar via a {@link JarInputStream}
+     */
+    private static Set<String> collectStackParamMethods(Transformer transformer, RawZip.Reader reader, File inFile) throws IOException {
+        Set<String> methods = new HashSet<String>();
+        if (reader != null) {
+            for (RawZip.Entry entry : reader.getEntries())
+                if (isClass(entry.getName()))
+                    transformer.collectStackParamMethods(className(entry.getName()), reader.read(entry), methods);
+        } else {
+            JarInputStream jarIn = new JarInputStream(new FileInputStream(inFile));
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                for (ZipEntry entry = jarIn.getNextEntry(); entry != null; entry = jarIn.getNextEntry())
+                    if (isClass(entry.getName()))
+                        transformer.collectStackParamMethods(className(entry.getName()), readEntry(jarIn, baos), methods);
+            } finally {
+                jarIn.close();
+            }
+        }
+        if (DEBUG_TRANSFORM)
+            System.out.println("[autostack] " + methods.size() + " methods receive the stack as parameter from all classes");
+        return methods;
+    }
+
+    /**
+     * Decide whether the given jar entry is to be written to the output jar and record it in the class list.
+     * <p>
+     * When writing a class list, the signature files of a signed jar are dropped, because class data sharing does not
+     * archive classes from signed jars, and the signatures would not match the transformed classes anyway.
+     */
+    private static boolean include(String name, List<String> classList) {
+        if (classList == null)
+            return true;
+        if (isSignatureFile(name))
+            return false;
+        if (isClass(name) && !name.startsWith("META-INF/") && !name.endsWith("module-info.class") && !name.endsWith("package-info.class"))
+            classList.add(name.substring(0, name.length() - 6));
+        return true;
+    }
+
+    private static boolean isSignatureFile(String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', 9) != -1)
+            return false;
+        return name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC") || name.startsWith("META-INF/SIG-");
+    }
+
+    /**
+     * Write the given internal class names in the format of <code>-XX:SharedClassListFile</code>.
+     */
+    private static void writeClassList(List<String> classList, File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            for (String name : classList)
+                writer.write(name + "\n");
+        } finally {
+            writer.close();
+        }
+        if (DEBUG_TRANSFORM)
+            System.out.println("[autostack] wrote " + classList.size() + " classes to class list " + file);
+    }
+
+    /**
+     * Transform the classes of the given jar and copy all other entries and all classes not needing transformation as they
+     * are, without inflating and deflating them again. If this fails, no output jar is left behind.
+     */
+    private static void transformRaw(Transformer transformer, RawZip.Reader reader, File outFile, List<String> classList) throws IOException {
+        RawZip.Writer writer = new RawZip.Writer(outFile, STORED, LEVEL);
+        boolean written = false;
+        try {
+            writeRaw(transformer, reader, writer, classList);
+            /* Only a complete jar gets a central directory */
+            writer.close();
+            written = true;
+        } finally {
+            if (!written)
+                writer.abort();
+        }
+    }
+
+    private static void writeRaw(final Transformer transformer, final RawZip.Reader reader, RawZip.Writer writer, List<String> classList) throws IOException {
+        if (!PARALLEL) {
+            for (RawZip.Entry entry : reader.getEntries()) {
+                if (!include(entry.getName(), classList))
+                    continue;
+                byte[] transformed = isClass(entry.getName()) ? transform(transformer, entry.getName(), reader.read(entry)) : null;
+                if (transformed != null)
+                    writer.write(entry, transformed);
+                else
+                    writer.copy(reader, entry);
+            }
+            return;
+        }
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        int maxPending = MAX_PENDING_PER_THREAD * parallelism;
+        ArrayDeque<RawPending> pending = new ArrayDeque<RawPending>(maxPending);
+        try {
+            for (final RawZip.Entry entry : reader.getEntries()) {
+                if (!include(entry.getName(), classList))
+                    continue;
+                ForkJoinTask<byte[]> task = null;
+                if (isClass(entry.getName())) {
+                    task = pool.submit(new Callable<byte[]>() {
+                        public byte[] call() throws IOException {
+                            return transform(transformer, entry.getName(), reader.read(entry));
+                        }
+                    });
+                }
+                if (pending.size() == maxPending)
+                    pending.removeFirst().write(reader, writer);
+                pending.addLast(new RawPending(entry, task));
+            }
+            while (!pending.isEmpty())
+                pending.removeFirst().write(reader, writer);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * A jar entry whose class file is possibly still being transformed.
+     */
+    private static class RawPending {
+        final RawZip.Entry entry;
+        final ForkJoinTask<byte[]> task;
+
+        RawPending(RawZip.Entry entry, ForkJoinTask<byte[]> task) {
+            this.entry = entry;
+            this.task = task;
+        }
+
+        void write(RawZip.Reader reader, RawZip.Writer writer) throws IOException {
+            byte[] transformed = task != null ? task.join() : null;
+            if (transformed != null)
+                writer.write(entry, transformed);
+            else
+                writer.copy(reader, entry);
+        }
+    }
 
+    private static boolean isDirectories(String paths) {
+        for (String path : paths.split(File.pathSeparator))
+            if (!new File(path).isDirectory())
+                return false;
+        return true;
+    }
+
+    private static void transformSerial(Transformer transformer, JarInputStream jarIn, JarOutputStream jarOut, List<String> classList) throws IOException {
         ZipEntry entry = jarIn.getNextEntry();
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         while (entry != null) {
-            ZipEntry outEntry = new ZipEntry(entry.getName());
-            outEntry.setTime(entry.getTime());
-            long size = entry.getSize();
-            if (size >= 0L) {
-                outEntry.setSize(entry.getSize());
+            if (!include(entry.getName(), classList)) {
+                entry = jarIn.getNextEntry();
+                continue;
             }
-            jarOut.putNextEntry(outEntry);
-            if (!entry.isDirectory()) {
-                if (entry.getName().endsWith(".class")) {
-                    baos.reset();
-                    int read = 0;
-                    byte[] arr = new byte[1024];
-                    while ((read = jarIn.read(arr, 0, 1024)) != -1) {
-                        baos.write(arr, 0, read);
-                    }
-                    byte[] classfileBytes = baos.toByteArray();
-                    byte[] transformed = transformer.transform((ClassLoader) null, entry.getName().substring(0, entry.getName().length() - 6), null, null, classfileBytes);
-                    if (transformed != null) {
-                        jarOut.write(transformed, 0, transformed.length);
-                    } else {
-                        jarOut.write(classfileBytes, 0, classfileBytes.length);
-                    }
-                } else {
-                    int read = 0;
-                    byte[] arr = new byte[1024];
-                    while ((read = jarIn.read(arr, 0, 1024)) != -1) {
-                        jarOut.write(arr, 0, read);
-                    }
-                }
+            byte[] bytes = readEntry(jarIn, baos);
+            if (isClass(entry.getName())) {
+                byte[] transformed = transform(transformer, entry.getName(), bytes);
+                if (transformed != null)
+                    bytes = transformed;
             }
-            jarOut.closeEntry();
+            writeEntry(jarOut, entry, bytes);
             entry = jarIn.getNextEntry();
         }
-        jarOut.finish();
-        jarOut.flush();
-        jarOut.close();
-        fos.close();
-        jarIn.close();
-        fis.close();
+    }
+
+    /**
+     * Transform the classes on a {@link ForkJoinPool} while reading and writing the jar entries on the calling thread.
+     * <p>
+     * Entries are written in their original order. At most {@link #MAX_PENDING_PER_THREAD} entries per thread are kept in memory.
+     */
+    private static void transformParallel(final Transformer transformer, JarInputStream jarIn, JarOutputStream jarOut, List<String> classList) throws IOException {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        int maxPending = MAX_PENDING_PER_THREAD * parallelism;
+        ArrayDeque<Pending> pending = new ArrayDeque<Pending>(maxPending);
+        try {
+            ZipEntry entry = jarIn.getNextEntry();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            while (entry != null) {
+                if (!include(entry.getName(), classList)) {
+                    entry = jarIn.getNextEntry();
+                    continue;
+                }
+                final ZipEntry e = entry;
+                final byte[] bytes = readEntry(jarIn, baos);
+                ForkJoinTask<byte[]> task = null;
+                if (isClass(entry.getName())) {
+                    task = pool.submit(new Callable<byte[]>() {
+                        public byte[] call() {
+                            return transform(transformer, e.getName(), bytes);
+                        }
+                    });
+                }
+                if (pending.size() == maxPending)
+                    pending.removeFirst().write(jarOut);
+                pending.addLast(new Pending(entry, bytes, task));
+                entry = jarIn.getNextEntry();
+            }
+            while (!pending.isEmpty())
+                pending.removeFirst().write(jarOut);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * A read jar entry whose class file is possibly still being transformed.
+     */
+    private static class Pending {
+        final ZipEntry entry;
+        final byte[] bytes;
+        final ForkJoinTask<byte[]> task;
+
+        Pending(ZipEntry entry, byte[] bytes, ForkJoinTask<byte[]> task) {
+            this.entry = entry;
+            this.bytes = bytes;
+            this.task = task;
+        }
+
+        void write(JarOutputStream jarOut) throws IOException {
+            byte[] transformed = task != null ? task.join() : null;
+            writeEntry(jarOut, entry, transformed != null ? transformed : bytes);
+        }
+    }
+
+    private static boolean isClass(String name) {
+        return name.endsWith(".class");
+    }
+
+    private static String className(String name) {
+        return name.substring(0, name.length() - 6);
+    }
+
+    private static byte[] transform(Transformer transformer, String name, byte[] classfileBytes) {
+        return transformer.transform((ClassLoader) null, className(name), null, null, classfileBytes);
+    }
+
+    private static byte[] readEntry(JarInputStream jarIn, ByteArrayOutputStream baos) throws IOException {
+        baos.reset();
+        int read = 0;
+        byte[] arr = new byte[1024];
+        while ((read = jarIn.read(arr, 0, 1024)) != -1) {
+            baos.write(arr, 0, read);
+        }
+        return baos.toByteArray();
+    }
+
+    private static void writeEntry(JarOutputStream jarOut, ZipEntry entry, byte[] bytes) throws IOException {
+        ZipEntry outEntry = new ZipEntry(entry.getName());
+        outEntry.setTime(entry.getTime());
+        outEntry.setSize(bytes.length);
+        if (STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+            outEntry.setCompressedSize(bytes.length);
+            outEntry.setCrc(crc.getValue());
+        }
+        jarOut.putNextEntry(outEntry);
+        if (!entry.isDirectory())
+            jarOut.write(bytes, 0, bytes.length);
+        jarOut.closeEntry();
     }
 
 }
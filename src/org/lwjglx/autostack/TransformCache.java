@@ -0,0 +1,234 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Persistent cache of transformed classes used by the {@link Agent}.
+ * <p>
+ * The cache consists of a memory-mapped index file holding an open-addressing hash table of fixed capacity and a blob
+ * file to which the transformed class files are appended. Entries are keyed by a hash of the original class file bytes
+ * and the flags of the {@link Transformer}, so a lookup on a warm start costs one probe into the index and one read
+ * from the blob file.
+ * <p>
+ * The cache directory is locked by the first JVM opening it. Other JVMs concurrently using the same directory will fail
+ * to open the cache and run without it.
+ *
+ * @author Kai Burjack
+ */
+class TransformCache {
+
+    /**
+     * Returned by {@link #get(byte[])} for classes that were found to not need any transformation.
+     */
+    static final byte[] NOT_TRANSFORMED = new byte[0];
+
+    private static final int MAGIC = 0x41535443; // "ASTC"
+    /**
+     * Must be incremented whenever the transformation done by {@link Transformer} changes.
+     */
+    private static final int VERSION = 21;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 32;
+    private static final int CAPACITY = 1 << 16;
+    private static final int MAX_ENTRIES = CAPACITY / 4 * 3;
+
+    private final RandomAccessFile indexFile;
+    private final RandomAccessFile blobFile;
+    private final FileChannel blobChannel;
+    private final FileLock lock;
+    private final MappedByteBuffer index;
+    private int entries;
+
+    /**
+     * Open or create the cache in the given directory.
+     *
+     * @param dir
+     *            the cache directory
+     * @throws IOException
+     *             if the cache files could not be opened or the cache is in use by another JVM
+     */
+    public TransformCache(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create cache directory: " + dir);
+        indexFile = new RandomAccessFile(new File(dir, "autostack.idx"), "rw");
+        FileChannel indexChannel = indexFile.getChannel();
+        lock = indexChannel.tryLock();
+        if (lock == null) {
+            indexFile.close();
+            throw new IOException("Cache directory is in use by another process: " + dir);
+        }
+        blobFile = new RandomAccessFile(new File(dir, "autostack.dat"), "rw");
+        blobChannel = blobFile.getChannel();
+        long size = HEADER_SIZE + (long) CAPACITY * SLOT_SIZE;
+        boolean valid = indexChannel.size() == size;
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0L, size);
+        if (valid && index.getInt(0) == MAGIC && index.getInt(4) == VERSION && index.getInt(8) == CAPACITY) {
+            entries = index.getInt(12);
+        } else {
+            /* Missing, corrupt or outdated cache. Start over. */
+            for (int i = 0; i < size; i += 8)
+                index.putLong(i, 0L);
+            index.putInt(0, MAGIC);
+            index.putInt(4, VERSION);
+            index.putInt(8, CAPACITY);
+            blobChannel.truncate(0L);
+        }
+    }
+
+    /**
+     * Compute the cache key of the given class file transformed with the given {@link Transformer} flags and rewrite
+     * table.
+     *
+     * @param classfileBuffer
+     *            the original class file bytes
+     * @param flags
+     *            the flags of the transformer
+     * @param rewriteDigest
+     *            the {@link RewriteTable#digest() digest} of the rewrite table, since the methods invoked instead of
+     *            those allocating on the thread's stack depend on the LWJGL version
+     * @return the key
+     */
+    public byte[] key(byte[] classfileBuffer, int flags, byte[] rewriteDigest) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        digest.update(new byte[] { (byte) (flags >>> 24), (byte) (flags >>> 16), (byte) (flags >>> 8), (byte) flags });
+        digest.update(rewriteDigest);
+        digest.update(classfileBuffer);
+        return digest.digest();
+    }
+
+    /**
+     * Lookup the cached transformation result for the given key.
+     *
+     * @param key
+     *            the key computed via {@link #key(byte[], int, byte[])}
+     * @return the transformed class file, {@link #NOT_TRANSFORMED} if the class did not need transformation or
+     *         <code>null</code> if the key is not in the cache
+     * @throws IOException
+     *             if reading the blob file failed
+     */
+    public synchronized byte[] get(byte[] key) throws IOException {
+        long k0 = key0(key), k1 = key1(key);
+        for (int slot = slot(k0), i = 0; i < CAPACITY; i++, slot = (slot + 1) & (CAPACITY - 1)) {
+            int pos = HEADER_SIZE + slot * SLOT_SIZE;
+            long s0 = index.getLong(pos), s1 = index.getLong(pos + 8);
+            if (s0 == 0L && s1 == 0L)
+                return null;
+            if (s0 != k0 || s1 != k1)
+                continue;
+            long offset = index.getLong(pos + 16);
+            int length = index.getInt(pos + 24);
+            if (length < 0)
+                return NOT_TRANSFORMED;
+            ByteBuffer bb = ByteBuffer.allocate(length);
+            while (bb.hasRemaining())
+                if (blobChannel.read(bb, offset + bb.position()) < 0)
+                    return null;
+            return bb.array();
+        }
+        return null;
+    }
+
+    /**
+     * Store the transformation result for the given key.
+     *
+     * @param key
+     *            the key computed via {@link #key(byte[], int, byte[])}
+     * @param transformed
+     *            the transformed class file or <code>null</code> if the class did not need transformation
+     * @throws IOException
+     *             if writing to the blob file failed
+     */
+    public synchronized void put(byte[] key, byte[] transformed) throws IOException {
+        if (entries >= MAX_ENTRIES)
+            return;
+        long k0 = key0(key), k1 = key1(key);
+        int slot = slot(k0);
+        int pos = HEADER_SIZE + slot * SLOT_SIZE;
+        while (index.getLong(pos) != 0L || index.getLong(pos + 8) != 0L) {
+            if (index.getLong(pos) == k0 && index.getLong(pos + 8) == k1)
+                return;
+            slot = (slot + 1) & (CAPACITY - 1);
+            pos = HEADER_SIZE + slot * SLOT_SIZE;
+        }
+        long offset = -1L;
+        if (transformed != null) {
+            /* Write the blob before publishing the slot */
+            offset = blobChannel.size();
+            ByteBuffer bb = ByteBuffer.wrap(transformed);
+            while (bb.hasRemaining())
+                blobChannel.write(bb, offset + bb.position());
+        }
+        index.putLong(pos + 16, offset);
+        index.putInt(pos + 24, transformed != null ? transformed.length : -1);
+        index.putLong(pos + 8, k1);
+        index.putLong(pos, k0);
+        index.putInt(12, ++entries);
+    }
+
+    /**
+     * Flush the index and release the cache directory.
+     */
+    public synchronized void close() throws IOException {
+        index.force();
+        lock.release();
+        blobFile.close();
+        indexFile.close();
+    }
+
+    private static long key0(byte[] key) {
+        long k0 = getLong(key, 0);
+        /* Zero denotes an empty slot */
+        return k0 != 0L ? k0 : 1L;
+    }
+
+    private static long key1(byte[] key) {
+        return getLong(key, 8);
+    }
+
+    private static long getLong(byte[] b, int off) {
+        long l = 0L;
+        for (int i = 0; i < 8; i++)
+            l = l << 8 | b[off + i] & 0xFFL;
+        return l;
+    }
+
+    private static int slot(long k0) {
+        return (int) (k0 ^ k0 >>> 32) & (CAPACITY - 1);
+    }
+
+}
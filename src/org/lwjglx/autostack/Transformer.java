@@ -22,23 +22,38 @@
  */
 package org.lwjglx.autostack;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.instrument.ClassFileTransformer;
+import java.net.URL;
 import java.security.ProtectionDomain;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.FutureTask;
 
 import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ByteVector;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.TryCatchBlockSorter;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.util.TraceClassVisitor;
 
 import static org.objectweb.asm.Opcodes.*;
@@ -46,16 +61,53 @@ import static org.objectweb.asm.Opcodes.*;
 class Transformer implements ClassFileTransformer {
     private static final String MEMORYSTACK = "org/lwjgl/system/MemoryStack";
 
-    private List<String> packages;
+    private static final String TRANSFORMED_ATTRIBUTE = "org.lwjglx.autostack.Transformed";
+    private static final byte[] TRANSFORMED_ATTRIBUTE_UTF8 = utf8(TRANSFORMED_ATTRIBUTE);
+    private static final int CP_CANDIDATE = 1;
+    private static final int CP_TRANSFORMED = 2;
+
+    /**
+     * UTF8 constant pool entries of which at least one must be present in a class for it to possibly need transformation.
+     */
+    private static final byte[][] CANDIDATE_UTF8S = {
+        utf8(MEMORYSTACK),
+        utf8("mallocStack"),
+        utf8("callocStack"),
+        utf8("Lorg/lwjglx/autostack/UseNewStack;"),
+        utf8("Lorg/lwjglx/autostack/UseCallerStack;"),
+        utf8("Lorg/lwjglx/autostack/NoTransform;"),
+        utf8("Lorg/lwjglx/autostack/NoStackParam;")
+    };
+
+    private final PackageFilter filter;
     private boolean debugTransform;
     private boolean debugRuntime;
     private boolean trace;
     private boolean defaultNewStack = true;
     private boolean checkStack;
     private boolean stackAsParameter;
+    private boolean lazyStack;
+    private boolean inferStack;
+    private boolean foldFrames;
+    private boolean loopStack;
+    private boolean coalesce;
+    private boolean reuseStack;
+    private TransformCache cache;
+    private Pretransformer pretransformer;
+    private Set<String> index;
+    private Set<String> stackParamMethods;
+    private RewriteTable rewriteTable;
+    private final Map<String, RewriteTable> rewriteTables = new HashMap<String, RewriteTable>();
 
     public Transformer(List<String> packages) {
-        this.packages = packages != null ? packages : Collections.<String>emptyList();
+        this(new PackageFilter());
+        if (packages != null)
+            for (String pack : packages)
+                filter.include(pack);
+    }
+
+    public Transformer(PackageFilter filter) {
+        this.filter = filter;
     }
 
     public boolean isStackAsParameter() {
@@ -66,6 +118,129 @@ class Transformer implements ClassFileTransformer {
         this.stackAsParameter = stackAsParameter;
     }
 
+    public boolean isLazyStack() {
+        return lazyStack;
+    }
+
+    public void setLazyStack(boolean lazyStack) {
+        this.lazyStack = lazyStack;
+    }
+
+    public boolean isInferStack() {
+        return inferStack;
+    }
+
+    public void setInferStack(boolean inferStack) {
+        this.inferStack = inferStack;
+    }
+
+    public boolean isFoldFrames() {
+        return foldFrames;
+    }
+
+    public void setFoldFrames(boolean foldFrames) {
+        this.foldFrames = foldFrames;
+    }
+
+    public boolean isLoopStack() {
+        return loopStack;
+    }
+
+    public void setLoopStack(boolean loopStack) {
+        this.loopStack = loopStack;
+    }
+
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    public void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    public boolean isReuseStack() {
+        return reuseStack;
+    }
+
+    public void setReuseStack(boolean reuseStack) {
+        this.reuseStack = reuseStack;
+    }
+
+    public TransformCache getCache() {
+        return cache;
+    }
+
+    public void setCache(TransformCache cache) {
+        this.cache = cache;
+    }
+
+    public Pretransformer getPretransformer() {
+        return pretransformer;
+    }
+
+    public void setPretransformer(Pretransformer pretransformer) {
+        this.pretransformer = pretransformer;
+    }
+
+    public RewriteTable getRewriteTable() {
+        return rewriteTable;
+    }
+
+    /**
+     * Set the {@link RewriteTable} to lookup the methods to invoke instead of static methods allocating on the thread's stack.
+     * By default, the LWJGL classes are read via the class loader of each transformed class.
+     */
+    public void setRewriteTable(RewriteTable rewriteTable) {
+        this.rewriteTable = rewriteTable;
+    }
+
+    /**
+     * Determine the {@link RewriteTable} for the classes of the given class loader, which is the one set via
+     * {@link #setRewriteTable(RewriteTable)}, if any. Otherwise, the LWJGL classes are read via the given class loader,
+     * so that applications loading LWJGL in a child class loader get rewrites, too. All class loaders finding the same
+     * <code>MemoryStack</code> class share a table.
+     */
+    RewriteTable rewriteTable(ClassLoader loader) {
+        if (rewriteTable != null)
+            return rewriteTable;
+        String name = RewriteTable.MEMORYSTACK + ".class";
+        URL url = loader != null ? loader.getResource(name) : ClassLoader.getSystemResource(name);
+        String location = url != null ? url.toString() : "";
+        synchronized (rewriteTables) {
+            RewriteTable table = rewriteTables.get(location);
+            if (table == null) {
+                table = new RewriteTable(loader);
+                rewriteTables.put(location, table);
+            }
+            return table;
+        }
+    }
+
+    public Set<String> getStackParamMethods() {
+        return stackParamMethods;
+    }
+
+    /**
+     * Set the methods of all classes to be transformed which receive the stack as additional parameter, as collected via
+     * {@link #collectStackParamMethods(String, byte[], Set)}. Their invocations from transformed methods of other classes
+     * then also pass the stack.
+     */
+    public void setStackParamMethods(Set<String> stackParamMethods) {
+        this.stackParamMethods = stackParamMethods;
+    }
+
+    public Set<String> getIndex() {
+        return index;
+    }
+
+    /**
+     * Set the internal names of the top-level classes written by the {@link IndexProcessor}. When set, all other classes
+     * and their nested classes are not transformed.
+     */
+    public void setIndex(Set<String> index) {
+        this.index = index;
+    }
+
     public boolean isCheckStack() {
         return checkStack;
     }
@@ -111,30 +286,380 @@ class Transformer implements ClassFileTransformer {
         this.trace = trace;
     }
 
+    /**
+     * Custom class attribute marking a class as transformed by autostack, recording the {@link Transformer#transformFlags()}.
+     */
+    private static class TransformedAttribute extends Attribute {
+        final int flags;
+
+        TransformedAttribute(int flags) {
+            super(TRANSFORMED_ATTRIBUTE);
+            this.flags = flags;
+        }
+
+        protected Attribute read(ClassReader classReader, int offset, int length, char[] charBuffer, int codeAttributeOffset, Label[] labels) {
+            return new TransformedAttribute(classReader.readInt(offset));
+        }
+
+        protected ByteVector write(ClassWriter classWriter, byte[] code, int codeLength, int maxStack, int maxLocals) {
+            return new ByteVector(4).putInt(flags);
+        }
+    }
+
+    private static byte[] utf8(String str) {
+        byte[] bytes = new byte[str.length()];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) str.charAt(i);
+        return bytes;
+    }
+
+    /**
+     * Determine whether the given class possibly needs transformation.
+     * <p>
+     * This is much cheaper than a full {@link ClassReader#accept(ClassVisitor, int)} pass and allows to reject the vast majority
+     * of classes which neither use the MemoryStack nor carry any autostack annotations, as well as classes which were already
+     * transformed, such as by the offline {@link Tool}.
+     * 
+     * @param className
+     *            the internal name of the class
+     * @param b
+     *            the class file bytes
+     * @return <code>true</code> if the class possibly needs transformation; <code>false</code> if it definitely does not
+     */
+    boolean isCandidate(String className, byte[] b) {
+        int cp = scanConstantPool(b);
+        if ((cp & CP_CANDIDATE) == 0)
+            return false;
+        if ((cp & CP_TRANSFORMED) == 0)
+            return true;
+        int flags = readTransformedFlags(b);
+        if (flags == -1)
+            return true;
+        if (debugTransform)
+            if (flags == transformFlags())
+                System.out.println("[autostack] class is already transformed: " + className.replace('/', '.'));
+            else
+                System.out.println("[autostack] class is already transformed with different settings, not transforming again: " + className.replace('/', '.'));
+        return false;
+    }
+
+    /**
+     * Determine the {@link #transformFlags()} the given class was transformed with.
+     * 
+     * @param b
+     *            the class file bytes
+     * @return the flags, or <code>-1</code> if the class was not transformed
+     */
+    int transformedFlags(byte[] b) {
+        if ((scanConstantPool(b) & CP_TRANSFORMED) == 0)
+            return -1;
+        return readTransformedFlags(b);
+    }
+
+    private static int readTransformedFlags(byte[] b) {
+        final int[] flags = { -1 };
+        new ClassReader(b).accept(new ClassVisitor(ASM7) {
+            public void visitAttribute(Attribute attr) {
+                if (attr instanceof TransformedAttribute)
+                    flags[0] = ((TransformedAttribute) attr).flags;
+            }
+        }, new Attribute[] { new TransformedAttribute(0) }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return flags[0];
+    }
+
+    /**
+     * Walk the constant pool of the given class file and check whether it contains any of the {@link #CANDIDATE_UTF8S} and
+     * the name of the {@link TransformedAttribute}.
+     * 
+     * @param b
+     *            the class file bytes
+     * @return a combination of {@link #CP_CANDIDATE} and {@link #CP_TRANSFORMED}
+     */
+    private static int scanConstantPool(byte[] b) {
+        if (b.length < 10)
+            return CP_CANDIDATE;
+        int result = 0;
+        int count = (b[8] & 0xFF) << 8 | b[9] & 0xFF;
+        int off = 10;
+        for (int i = 1; i < count; i++) {
+            if (off >= b.length)
+                return CP_CANDIDATE;
+            switch (b[off]) {
+            case 1: /* Utf8 */
+                int len = (b[off + 1] & 0xFF) << 8 | b[off + 2] & 0xFF;
+                off += 3;
+                if (len == TRANSFORMED_ATTRIBUTE_UTF8.length && equals(b, off, TRANSFORMED_ATTRIBUTE_UTF8))
+                    result |= CP_TRANSFORMED;
+                else if ((result & CP_CANDIDATE) == 0)
+                    for (byte[] candidate : CANDIDATE_UTF8S)
+                        if (len == candidate.length && equals(b, off, candidate)) {
+                            result |= CP_CANDIDATE;
+                            break;
+                        }
+                off += len;
+                break;
+            case 7: /* Class */
+            case 8: /* String */
+            case 16: /* MethodType */
+            case 19: /* Module */
+            case 20: /* Package */
+                off += 3;
+                break;
+            case 15: /* MethodHandle */
+                off += 4;
+                break;
+            case 3: /* Integer */
+            case 4: /* Float */
+            case 9: /* Fieldref */
+            case 10: /* Methodref */
+            case 11: /* InterfaceMethodref */
+            case 12: /* NameAndType */
+            case 17: /* Dynamic */
+            case 18: /* InvokeDynamic */
+                off += 5;
+                break;
+            case 5: /* Long */
+            case 6: /* Double */
+                off += 9;
+                i++;
+                break;
+            default:
+                /* Unknown constant pool tag. Let ASM decide. */
+                return CP_CANDIDATE;
+            }
+        }
+        return result;
+    }
+
+    private static boolean equals(byte[] b, int off, byte[] candidate) {
+        for (int i = 0; i < candidate.length; i++)
+            if (b[off + i] != candidate[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Determine whether invocations of a method with the given access flags declared by a class with the given access flags
+     * always resolve to that method, so that they can pass the stack as additional argument.
+     * <p>
+     * Constructors and static initializers are excluded, since they cannot have a variant with another descriptor invoked
+     * like them.
+     */
+    private static boolean isExactTarget(int classAccess, int access, String name) {
+        return (classAccess & ACC_INTERFACE) == 0 && !name.equals("<init>") && !name.equals("<clinit>")
+                && ((access & (ACC_PRIVATE | ACC_STATIC | ACC_FINAL)) != 0 || (classAccess & ACC_FINAL) != 0);
+    }
+
+    /**
+     * Return the descriptor of the variant of a method with the given descriptor taking the stack as additional last
+     * parameter.
+     */
+    private static String stackParamDesc(String desc) {
+        int paramEndIndex = desc.indexOf(')');
+        return desc.substring(0, paramEndIndex) + "L" + MEMORYSTACK + ";" + desc.substring(paramEndIndex);
+    }
+
+    /**
+     * Add the methods of the given class which will receive the stack as additional parameter with
+     * {@link #setStackAsParameter(boolean)} to the given set, in the form accepted by {@link #setStackParamMethods(Set)}.
+     * 
+     * @param className
+     *            the internal name of the class
+     * @param classfileBuffer
+     *            the class file bytes
+     * @param methods
+     *            receives the methods
+     */
+    void collectStackParamMethods(final String className, byte[] classfileBuffer, final Set<String> methods) {
+        if (!isIncluded(className) || !isCandidate(className, classfileBuffer))
+            return;
+        new ClassReader(classfileBuffer).accept(new ClassVisitor(ASM7) {
+            int classAccess;
+            boolean classNoTransform;
+            final Set<String> declaredMethods = new HashSet<String>();
+            final List<String[]> marked = new ArrayList<String[]>();
+
+            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                classAccess = access;
+            }
+
+            public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                if ("Lorg/lwjglx/autostack/NoTransform;".equals(desc))
+                    classNoTransform = true;
+                return null;
+            }
+
+            public MethodVisitor visitMethod(final int access, final String methodName, final String methodDesc, String signature, String[] exceptions) {
+                declaredMethods.add(methodName + methodDesc);
+                if (classNoTransform || (access & (ACC_NATIVE | ACC_ABSTRACT)) != 0 || !isExactTarget(classAccess, access, methodName))
+                    return null;
+                return new MethodVisitor(ASM7) {
+                    boolean mark, excluded;
+
+                    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                        if ("Lorg/lwjglx/autostack/NoTransform;".equals(desc) || "Lorg/lwjglx/autostack/NoStackParam;".equals(desc))
+                            excluded = true;
+                        else if ("Lorg/lwjglx/autostack/UseNewStack;".equals(desc))
+                            mark = true;
+                        return null;
+                    }
+
+                    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+                        if (opcode == INVOKESTATIC && !itf && RewriteTable.isStackMethod(owner, name))
+                            mark = true;
+                    }
+
+                    public void visitEnd() {
+                        if (mark && !excluded)
+                            marked.add(new String[] { methodName, methodDesc });
+                    }
+                };
+            }
+
+            public void visitEnd() {
+                /* Like transformClass(), skip methods whose variant taking the stack is already declared */
+                for (String[] method : marked)
+                    if (!declaredMethods.contains(method[0] + stackParamDesc(method[1])))
+                        methods.add(className + "." + method[0] + method[1]);
+            }
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    }
+
     public byte[] transform(ClassLoader loader, final String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
         try {
-        if (className == null
-                || className.startsWith("java/")
-                || className.startsWith("sun/")
-                || className.startsWith("jdk/internal/")
-                || className.startsWith("org/lwjgl/"))
+        if (!isIncluded(className))
             return null;
-        for (String pack : packages)
-            if (!className.startsWith(pack))
-                return null;
+        if (!isCandidate(className, classfileBuffer))
+            return null;
+        RewriteTable table = rewriteTable(loader);
+        if (pretransformer != null) {
+            FutureTask<byte[]> task = pretransformer.take(className, classfileBuffer, table);
+            if (task != null) {
+                /* Either run it now if it was not yet picked up by a worker or wait for it to complete */
+                task.run();
+                return task.get();
+            }
+        }
+        return transformCandidate(table, className, classfileBuffer);
+        } catch (Throwable t) {
+            t.printStackTrace();
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Determine whether the class with the given name is to be considered for transformation based on its name alone.
+     */
+    boolean isIncluded(String className) {
+        if (className == null || !filter.matches(className))
+            return false;
+        return index == null || isIndexed(className);
+    }
+
+    /**
+     * Determine whether the given class or any of its enclosing classes is contained in the {@link #index}.
+     */
+    private boolean isIndexed(String className) {
+        if (index.contains(className))
+            return true;
+        for (int i = className.indexOf('$'); i > 0; i = className.indexOf('$', i + 1))
+            if (index.contains(className.substring(0, i)))
+                return true;
+        return false;
+    }
+
+    /**
+     * Transform the given class which passed {@link #isIncluded(String)} and {@link #isCandidate(String, byte[])}, possibly using the
+     * {@link #cache}.
+     */
+    byte[] transformCandidate(RewriteTable table, String className, byte[] classfileBuffer) throws IOException {
+        if (cache == null)
+            return transformClass(table, className, classfileBuffer);
+        byte[] key = cache.key(classfileBuffer, transformFlags() | (trace ? 1 << 30 : 0), table.digest());
+        byte[] cached = cache.get(key);
+        if (cached != null) {
+            if (debugTransform)
+                System.out.println("[autostack] using cached transformation of class: " + className.replace('/', '.'));
+            return cached != TransformCache.NOT_TRANSFORMED ? cached : null;
+        }
+        byte[] transformed = transformClass(table, className, classfileBuffer);
+        cache.put(key, transformed);
+        return transformed;
+    }
+
+    /**
+     * Flags affecting the generated code, recorded in the {@link TransformedAttribute} of transformed classes.
+     */
+    int transformFlags() {
+        return (defaultNewStack ? 1 : 0) | (checkStack ? 2 : 0) | (stackAsParameter ? 4 : 0) | (debugRuntime ? 8 : 0) | (lazyStack ? 16 : 0) | (inferStack ? 32 : 0) | (foldFrames ? 64 : 0) | (loopStack ? 128 : 0) | (coalesce ? 256 : 0) | (reuseStack ? 512 : 0);
+    }
+
+    private static boolean hasAnnotation(MethodNode mn, String desc) {
+        if (mn.invisibleAnnotations != null)
+            for (AnnotationNode an : mn.invisibleAnnotations)
+                if (an.desc.equals(desc))
+                    return true;
+        if (mn.visibleAnnotations != null)
+            for (AnnotationNode an : mn.visibleAnnotations)
+                if (an.desc.equals(desc))
+                    return true;
+        return false;
+    }
+
+    private byte[] transformClass(final RewriteTable table, final String className, byte[] classfileBuffer) {
         ClassReader cr = new ClassReader(classfileBuffer);
         final Map<String, Integer> stackMethods = new HashMap<String, Integer>();
-        // Scan all methods that need auto-stack
+        final List<MethodNode> stackMethodNodes = new ArrayList<MethodNode>();
+        final Map<MethodNode, Integer> lambdaMethodNodes = new LinkedHashMap<MethodNode, Integer>();
+        final Map<MethodNode, Integer> callerMethodNodes = new LinkedHashMap<MethodNode, Integer>();
+        final Map<String, Handle> lambdaBridges = new LinkedHashMap<String, Handle>();
+        final Map<String, Boolean> inferredNewStack = new HashMap<String, Boolean>();
+        final Set<String> allocatingMethods = new HashSet<String>();
+        final Map<String, Set<String>> callers = new HashMap<String, Set<String>>();
+        final Set<String> handleTargets = new HashSet<String>();
+        final Set<String> flattenedMethods = new HashSet<String>();
+        final Set<String> frameSharingMethods = new HashSet<String>();
+        final Set<String> declaredMethods = new HashSet<String>();
+        /*
+         * Scan and transform in a single pass: Each method is buffered in a MethodNode while scanning it.
+         * Methods that do not need auto-stack are streamed to the ClassWriter right away. All others are
+         * transformed at the end of the class, once all stack methods (possibly invoked by them) are known.
+         */
         if (debugTransform)
             System.out.println("[autostack] scanning methods in class: " + className.replace('/', '.'));
-        cr.accept(new ClassVisitor(ASM7) {
+        ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
+        cr.accept(new ClassVisitor(ASM7, cw) {
+            boolean classDefaultNewStack = defaultNewStack;
+            boolean classNoTransform;
+            boolean classDeclaresStack;
+            boolean classIsNestmate;
+            int classAccess;
+            int classVersion;
+
+            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                classAccess = access;
+                classVersion = version & 0xFFFF;
+                super.visit(version, access, name, signature, superName, interfaces);
+            }
+
+            public void visitNestHost(String nestHost) {
+                classIsNestmate = true;
+                super.visitNestHost(nestHost);
+            }
+
+            public void visitNestMember(String nestMember) {
+                classIsNestmate = true;
+                super.visitNestMember(nestMember);
+            }
+
             public MethodVisitor visitMethod(final int access, final String methodName, final String methodDesc, String signature, String[] exceptions) {
+                declaredMethods.add(methodName + methodDesc);
                 if ((access & (ACC_NATIVE | ACC_ABSTRACT)) != 0) {
                     // Don't try to analyze native or abstract methods.
-                    return null;
+                    return super.visitMethod(access, methodName, methodDesc, signature, exceptions);
                 }
-                MethodVisitor mv = new MethodVisitor(ASM7) {
-                    boolean mark, catches, notransform, nostackparam, forcestack;
+                return new MethodNode(ASM7, access, methodName, methodDesc, signature, exceptions) {
+                    boolean mark, catches, notransform, nostackparam, forcestack, invokesClassMethod;
 
                     public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
                         if ("Lorg/lwjglx/autostack/NoTransform;".equals(desc))
@@ -143,28 +668,43 @@ class Transformer implements ClassFileTransformer {
                             nostackparam = true;
                         else if ("Lorg/lwjglx/autostack/UseNewStack;".equals(desc))
                         	forcestack = true;
-                        return null;
+                        return super.visitAnnotation(desc, visible);
                     }
 
                     public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
-                        if (opcode == INVOKESTATIC && !itf && (
-                                owner.startsWith("org/lwjgl/") && (name.equals("mallocStack") ||name.equals("callocStack")) ||
-                                owner.equals(MEMORYSTACK) && (name.equals("stackGet") || name.equals("stackPop") || name.equals("stackPush") ||
-                                                              name.startsWith("stackMalloc") || name.startsWith("stackCalloc") ||
-                                                              name.startsWith("nstackMalloc") || name.startsWith("nstackCalloc") ||
-                                                              name.equals("stackUTF8") || name.equals("stackASCII") || name.equals("stackUTF16") ||
-                                                              name.equals("stackFloats") || name.equals("stackInts") || name.equals("stackBytes") ||
-                                                              name.equals("stackShorts") || name.equals("stackPointers") || name.equals("stackLongs")))) {
+                        if (opcode == INVOKESTATIC && !itf && RewriteTable.isStackMethod(owner, name)) {
                             mark = true;
                         }
+                        if (owner.equals(className)) {
+                            invokesClassMethod = true;
+                            Set<String> methodCallers = callers.get(name + desc);
+                            if (methodCallers == null)
+                                callers.put(name + desc, methodCallers = new HashSet<String>());
+                            methodCallers.add(methodName + methodDesc);
+                        }
+                        super.visitMethodInsn(opcode, owner, name, desc, itf);
+                    }
+
+                    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+                        for (Object arg : bsmArgs)
+                            if (arg instanceof Handle && ((Handle) arg).getOwner().equals(className))
+                                handleTargets.add(((Handle) arg).getName() + ((Handle) arg).getDesc());
+                        super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+                    }
+
+                    public void visitLdcInsn(Object value) {
+                        if (value instanceof Handle && ((Handle) value).getOwner().equals(className))
+                            handleTargets.add(((Handle) value).getName() + ((Handle) value).getDesc());
+                        super.visitLdcInsn(value);
                     }
 
                     public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
                         catches = true;
+                        super.visitTryCatchBlock(start, end, handler, type);
                     }
 
                     public void visitEnd() {
-                        int flag = (access & ACC_PRIVATE) != 0 ? 8 : 0;
+                        int flag = isExactTarget(classAccess, access, methodName) ? 8 : 0;
                         flag |= nostackparam ? 16 : 0;
                         if (mark || notransform || forcestack || nostackparam) {
                             if (notransform) {
@@ -179,29 +719,358 @@ class Transformer implements ClassFileTransformer {
                                     System.out.println("[autostack]   will transform method: " + className.replace('/', '.') + "." + methodName);
                             }
                             stackMethods.put(methodName + methodDesc, Integer.valueOf(flag));
+                            stackMethodNodes.add(this);
+                        } else if (stackAsParameter && SynchronousLambdas.analyze(this, className) != null) {
+                            /*
+                             * Might pass the stack to its lambdas, but only once we know whether the lambda methods
+                             * (usually declared after it) are transformed.
+                             */
+                            flag |= (checkStack ? 4 : 0) | (catches ? 1 : 0);
+                            lambdaMethodNodes.put(this, Integer.valueOf(flag));
+                        } else if (invokesClassMethod && !classNoTransform) {
+                            /*
+                             * Might invoke methods allocating in its frame, but only once we know which methods of
+                             * this class do so.
+                             */
+                            flag |= (checkStack ? 4 : 0) | (catches ? 1 : 0);
+                            callerMethodNodes.put(this, Integer.valueOf(flag));
+                        } else {
+                            // Does not need auto-stack, so write it as is
+                            accept(cv);
                         }
                     }
                 };
-                return mv;
             }
-        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
-        if (stackMethods.isEmpty())
-            return null;
 
-        // Now, transform all such methods
-        if (debugTransform)
-            System.out.println("[autostack] transforming methods in class: " + className.replace('/', '.'));
-        ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
-        cr.accept(new ClassVisitor(ASM7, cw) {
-            boolean classDefaultNewStack = defaultNewStack;
-            boolean classNoTransform;
+            public void visitEnd() {
+                excludeDeclaredStackParamVariants();
+                transformLambdaMethods();
+                if (inferStack && !classDeclaresStack && !classNoTransform)
+                    inferStackPolicies();
+                if (foldFrames && !classNoTransform && !classIsNestmate && !checkStack)
+                    flattenFrames();
+                collectFrameSharingMethods();
+                if (!classNoTransform)
+                    transformCallerMethods();
+                if (!stackMethods.isEmpty()) {
+                    // Now, transform all such methods
+                    if (debugTransform)
+                        System.out.println("[autostack] transforming methods in class: " + className.replace('/', '.'));
+                    if (checkStack)
+                        generateCheckStackMethods();
+                    if (lazyStack)
+                        generateLazyStackMethods();
+                    for (MethodNode mn : stackMethodNodes) {
+                        String[] exceptions = mn.exceptions.toArray(new String[mn.exceptions.size()]);
+                        String key = mn.name + mn.desc;
+                        boolean notransform = classNoTransform || (stackMethods.get(key).intValue() & 2) != 0;
+                        boolean[] returnedAllocations = notransform ? null : StackEscapes.returnedAllocations(mn, className, stackMethods.keySet(), frameSharingMethods);
+                        boolean forceLoopFrames = hasAnnotation(mn, "Lorg/lwjglx/autostack/UseLoopStack;");
+                        StackEscapes.LoopFrames loopFrames = notransform || !forceLoopFrames && (!loopStack || !isNewStack(mn) && !flattenedMethods.contains(key)) ? null
+                                : StackEscapes.loopFrames(mn, className, stackMethods.keySet(), frameSharingMethods, forceLoopFrames);
+                        ConstantAllocations.Slice[] slices = notransform || !coalesce ? null
+                                : ConstantAllocations.analyze(mn, className, stackMethods.keySet(), frameSharingMethods, returnedAllocations, reuseStack);
+                        boolean[] reusedFrames = notransform || !reuseStack || checkStack || !isNewStack(mn) ? null
+                                : StackEscapes.reusedFrames(mn, className, stackMethods.keySet(), frameSharingMethods, slices);
+                        int[] regions = StackRegions.analyze(mn);
+                        if (!notransform)
+                            StackRegions.removeDeadHandlers(mn, regions);
+                        mn.accept(transformMethod(mn.access, mn.name, mn.desc, mn.signature, exceptions, mn.maxLocals, regions,
+                                SynchronousLambdas.analyze(mn, className), returnedAllocations, loopFrames, slices, reusedFrames));
+                    }
+                    for (Handle impl : lambdaBridges.values())
+                        generateLambdaBridge(impl);
+                    cv.visitAttribute(new TransformedAttribute(transformFlags()));
+                }
+                cv.visitEnd();
+            }
 
-            @Override
-            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-                cv.visit(version, access, name, signature, superName, interfaces);
-                if (!checkStack) {
-                    return;
+            /**
+             * Do not add the stack as parameter to methods whose variant taking it is already declared by this class.
+             */
+            private void excludeDeclaredStackParamVariants() {
+                for (MethodNode mn : stackMethodNodes) {
+                    int flag = stackMethods.get(mn.name + mn.desc).intValue();
+                    if ((flag & 8) != 0 && declaredMethods.contains(mn.name + stackParamDesc(mn.desc)))
+                        stackMethods.put(mn.name + mn.desc, Integer.valueOf(flag & ~8));
+                }
+                for (Map.Entry<MethodNode, Integer> e : lambdaMethodNodes.entrySet()) {
+                    MethodNode mn = e.getKey();
+                    if ((e.getValue().intValue() & 8) != 0 && declaredMethods.contains(mn.name + stackParamDesc(mn.desc)))
+                        e.setValue(Integer.valueOf(e.getValue().intValue() & ~8));
+                }
+            }
+
+            /**
+             * Also transform the methods creating synchronous lambdas whose implementation methods take the stack as
+             * additional parameter, so that the lambdas can be given the stack of the method.
+             */
+            private void transformLambdaMethods() {
+                boolean changed = true;
+                while (changed) {
+                    changed = false;
+                    for (Iterator<Map.Entry<MethodNode, Integer>> it = lambdaMethodNodes.entrySet().iterator(); it.hasNext();) {
+                        Map.Entry<MethodNode, Integer> e = it.next();
+                        MethodNode mn = e.getKey();
+                        for (Handle impl : SynchronousLambdas.analyze(mn, className)) {
+                            if (impl != null && takesStackParam(stackMethods.get(impl.getName() + impl.getDesc()))) {
+                                if (debugTransform)
+                                    System.out.println("[autostack]   will transform method: " + className.replace('/', '.') + "." + mn.name + " to pass stack to lambda " + impl.getName());
+                                stackMethods.put(mn.name + mn.desc, e.getValue());
+                                stackMethodNodes.add(mn);
+                                it.remove();
+                                changed = true;
+                                break;
+                            }
+                        }
+                    }
+                }
+                for (MethodNode mn : lambdaMethodNodes.keySet())
+                    mn.accept(cv);
+            }
+
+            /**
+             * Decide for each method not declaring its stack lifecycle whether it uses a new stack frame, based on the
+             * escape analysis of its stack memory. Methods allocating in the frame of their caller are determined first,
+             * since their invocations allocate in the frame of the invoking method.
+             */
+            private void inferStackPolicies() {
+                for (MethodNode mn : stackMethodNodes) {
+                    if ((stackMethods.get(mn.name + mn.desc).intValue() & 2) != 0 || hasAnnotation(mn, "Lorg/lwjglx/autostack/UseCallerStack;"))
+                        allocatingMethods.add(mn.name + mn.desc);
+                }
+                boolean changed = true;
+                while (changed) {
+                    changed = false;
+                    for (MethodNode mn : stackMethodNodes) {
+                        if (allocatingMethods.contains(mn.name + mn.desc))
+                            continue;
+                        int escapes = StackEscapes.analyze(mn, className, stackMethods.keySet(), allocatingMethods);
+                        // The memory returned by methods using a new stack frame is kept in the frame of the caller
+                        boolean returns = escapes != -1 && (escapes & StackEscapes.RETURNS) != 0;
+                        boolean newStack = declaresStack(mn) || inferNewStack(escapes);
+                        if (returns || !newStack && (escapes == -1 || (escapes & StackEscapes.ALLOCATES) != 0)) {
+                            allocatingMethods.add(mn.name + mn.desc);
+                            changed = true;
+                        }
+                    }
+                }
+                for (MethodNode mn : stackMethodNodes) {
+                    if ((stackMethods.get(mn.name + mn.desc).intValue() & 2) != 0 || declaresStack(mn))
+                        continue;
+                    int escapes = StackEscapes.analyze(mn, className, stackMethods.keySet(), allocatingMethods);
+                    boolean newStack = inferNewStack(escapes);
+                    if (debugTransform) {
+                        String reason = escapes == -1 ? "could not be analyzed" : (escapes & StackEscapes.RETURNS) != 0 ? "returns stack memory, which is kept"
+                                : (escapes & StackEscapes.ALLOCATES) == 0 ? "does not allocate in its frame"
+                                : (escapes & StackEscapes.STORES) != 0 ? "stores stack memory" : "stack memory does not escape";
+                        System.out.println("[autostack]   infer " + (newStack ? "new" : "caller") + " stack for method: " + className.replace('/', '.') + "." + mn.name + " (" + reason + ")");
+                    }
+                    inferredNewStack.put(mn.name + mn.desc, Boolean.valueOf(newStack));
+                }
+            }
+
+            /**
+             * Fold the frames of private helper methods using a new stack frame into the frames of their callers, if
+             * their only callers are transformed methods of this class whose own frame bounds the lifetime of the
+             * allocations of the helper. That is the case when the callers use a new stack frame themselves or have
+             * their frame folded into their callers, and do not invoke the helper in a loop. Helpers referenced by
+             * method handles, such as lambdas, and recursive helpers are left alone.
+             */
+            private void flattenFrames() {
+                Map<String, MethodNode> methodNodes = new HashMap<String, MethodNode>();
+                for (MethodNode mn : stackMethodNodes)
+                    methodNodes.put(mn.name + mn.desc, mn);
+                Set<String> candidates = new HashSet<String>();
+                for (MethodNode mn : stackMethodNodes) {
+                    String key = mn.name + mn.desc;
+                    if ((mn.access & ACC_PRIVATE) == 0 || mn.name.equals("<init>") || (stackMethods.get(key).intValue() & 2) != 0 || declaresStack(mn)
+                            || !isNewStack(mn) || handleTargets.contains(key) || isInvokedInLoop(key, methodNodes))
+                        continue;
+                    candidates.add(key);
+                }
+                boolean changed = true;
+                while (changed) {
+                    changed = false;
+                    for (Iterator<String> it = candidates.iterator(); it.hasNext();) {
+                        String key = it.next();
+                        boolean bounded = true, undecided = false;
+                        Set<String> methodCallers = callers.get(key);
+                        if (methodCallers != null) {
+                            for (String caller : methodCallers) {
+                                if (candidates.contains(caller))
+                                    undecided = true;
+                                else if (!flattenedMethods.contains(caller) && !isNewStack(methodNodes.get(caller)))
+                                    bounded = false;
+                            }
+                        }
+                        if (bounded && undecided)
+                            continue;
+                        if (bounded) {
+                            if (debugTransform)
+                                System.out.println("[autostack]   fold frame of method into its callers: " + className.replace('/', '.') + "." + key.substring(0, key.indexOf('(')));
+                            flattenedMethods.add(key);
+                            inferredNewStack.put(key, Boolean.FALSE);
+                        }
+                        it.remove();
+                        changed = true;
+                    }
+                }
+            }
+
+            /**
+             * Determine whether the given method is invoked by a method not transformed or within a loop.
+             */
+            private boolean isInvokedInLoop(String key, Map<String, MethodNode> methodNodes) {
+                Set<String> methodCallers = callers.get(key);
+                if (methodCallers == null)
+                    return false;
+                for (String caller : methodCallers) {
+                    MethodNode mn = methodNodes.get(caller);
+                    if (mn == null || (stackMethods.get(caller).intValue() & 2) != 0)
+                        return true;
+                    for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+                        if (!(insn instanceof MethodInsnNode))
+                            continue;
+                        MethodInsnNode min = (MethodInsnNode) insn;
+                        if (min.owner.equals(className) && key.equals(min.name + min.desc) && ControlFlow.isInLoop(mn, min))
+                            return true;
+                    }
+                }
+                return false;
+            }
+
+            /**
+             * Collect the methods of this class whose invocations allocate in the frame of the invoking method. These
+             * are the methods known to allocate in the frame of their caller, and all stack methods not using a new
+             * stack frame themselves, including the helpers whose frame is folded into their callers.
+             */
+            private void collectFrameSharingMethods() {
+                frameSharingMethods.addAll(allocatingMethods);
+                frameSharingMethods.addAll(flattenedMethods);
+                for (MethodNode mn : stackMethodNodes) {
+                    String key = mn.name + mn.desc;
+                    if (classNoTransform || (stackMethods.get(key).intValue() & 2) != 0 || !isNewStack(mn))
+                        frameSharingMethods.add(key);
+                }
+            }
+
+            /**
+             * Also transform the methods not using the stack themselves which invoke methods allocating in their frame,
+             * so that this memory is freed when they return. Methods using a new stack frame which return memory of it
+             * allocate in the frame of their callers, too.
+             */
+            private void transformCallerMethods() {
+                boolean changed = true;
+                while (changed) {
+                    changed = false;
+                    for (MethodNode mn : stackMethodNodes) {
+                        String key = mn.name + mn.desc;
+                        if (frameSharingMethods.contains(key) || !returnsAllocation(mn))
+                            continue;
+                        frameSharingMethods.add(key);
+                        changed = true;
+                    }
+                    for (Iterator<Map.Entry<MethodNode, Integer>> it = callerMethodNodes.entrySet().iterator(); it.hasNext();) {
+                        Map.Entry<MethodNode, Integer> e = it.next();
+                        MethodNode mn = e.getKey();
+                        String key = mn.name + mn.desc;
+                        if (!invokesFrameSharingMethod(key))
+                            continue;
+                        if (debugTransform)
+                            System.out.println("[autostack]   will transform method: " + className.replace('/', '.') + "." + mn.name + " to free memory allocated in its frame");
+                        stackMethods.put(key, e.getValue());
+                        stackMethodNodes.add(mn);
+                        if (!isNewStack(mn))
+                            frameSharingMethods.add(key);
+                        it.remove();
+                        changed = true;
+                    }
+                }
+                for (MethodNode mn : callerMethodNodes.keySet())
+                    mn.accept(cv);
+            }
+
+            private boolean returnsAllocation(MethodNode mn) {
+                if ((stackMethods.get(mn.name + mn.desc).intValue() & 2) != 0)
+                    return false;
+                boolean[] returnedAllocations = StackEscapes.returnedAllocations(mn, className, stackMethods.keySet(), frameSharingMethods);
+                if (returnedAllocations != null)
+                    for (boolean returned : returnedAllocations)
+                        if (returned)
+                            return true;
+                return false;
+            }
+
+            private boolean invokesFrameSharingMethod(String key) {
+                for (String method : frameSharingMethods) {
+                    Set<String> methodCallers = callers.get(method);
+                    if (methodCallers != null && methodCallers.contains(key))
+                        return true;
+                }
+                return false;
+            }
+
+            private boolean isNewStack(MethodNode mn) {
+                if (hasAnnotation(mn, "Lorg/lwjglx/autostack/UseCallerStack;"))
+                    return false;
+                if (hasAnnotation(mn, "Lorg/lwjglx/autostack/UseNewStack;"))
+                    return true;
+                Boolean inferred = inferredNewStack.get(mn.name + mn.desc);
+                return inferred != null ? inferred.booleanValue() : classDefaultNewStack;
+            }
+
+            private boolean inferNewStack(int escapes) {
+                if (escapes == -1)
+                    return classDefaultNewStack;
+                if ((escapes & StackEscapes.ALLOCATES) == 0)
+                    return false;
+                if ((escapes & StackEscapes.STORES) != 0)
+                    return classDefaultNewStack;
+                return true;
+            }
+
+            private boolean declaresStack(MethodNode mn) {
+                return hasAnnotation(mn, "Lorg/lwjglx/autostack/UseCallerStack;") || hasAnnotation(mn, "Lorg/lwjglx/autostack/UseNewStack;");
+            }
+
+            private boolean takesStackParam(Integer info) {
+                return stackAsParameter && info != null && (info.intValue() & 8) != 0 && (info.intValue() & 16) == 0;
+            }
+
+            /**
+             * Return the implementation method of lambdas given the stack of the method creating them, which is
+             * captured right after the receiver, if any, and passed on to the stack variant of the given method.
+             */
+            private Handle lambdaBridge(Handle impl) {
+                String receiver = impl.getTag() == H_INVOKESTATIC ? "" : "L" + className + ";";
+                return new Handle(H_INVOKESTATIC, className, impl.getName() + "$stack$", "(" + receiver + "L" + MEMORYSTACK + ";" + impl.getDesc().substring(1), false);
+            }
+
+            private void generateLambdaBridge(Handle impl) {
+                Handle bridge = lambdaBridge(impl);
+                boolean isStatic = impl.getTag() == H_INVOKESTATIC;
+                MethodVisitor mv = cv.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, bridge.getName(), bridge.getDesc(), null, null);
+                mv.visitCode();
+                int stackVar = isStatic ? 0 : 1;
+                if (!isStatic)
+                    mv.visitVarInsn(ALOAD, 0);
+                int var = stackVar + 1;
+                for (Type type : Type.getArgumentTypes(impl.getDesc())) {
+                    mv.visitVarInsn(type.getOpcode(ILOAD), var);
+                    var += type.getSize();
                 }
+                mv.visitVarInsn(ALOAD, stackVar);
+                int paramEndIndex = impl.getDesc().indexOf(')');
+                String stackDesc = impl.getDesc().substring(0, paramEndIndex) + "L" + MEMORYSTACK + ";" + impl.getDesc().substring(paramEndIndex);
+                int opcode = isStatic ? INVOKESTATIC : impl.getTag() == H_INVOKESPECIAL ? INVOKESPECIAL : INVOKEVIRTUAL;
+                mv.visitMethodInsn(opcode, className, impl.getName(), stackDesc, false);
+                mv.visitInsn(Type.getReturnType(impl.getDesc()).getOpcode(IRETURN));
+                mv.visitMaxs(-1, -1);
+                mv.visitEnd();
+            }
+
+            private void generateCheckStackMethods() {
                 /* Generate simple synthetic "compare stack pointers and throw if not equal" method */
                 MethodVisitor mv = cv.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, "$checkStack$", "(II)V", null, new String[] {"java/lang/AssertionError"});
                 {
@@ -264,16 +1133,72 @@ class Transformer implements ClassFileTransformer {
                 }
             }
 
+            private void generateLazyStackMethods() {
+                /* Return the given stack or the thread's stack if not yet acquired */
+                MethodVisitor mv = cv.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, "$acquireStack$", "(L" + MEMORYSTACK + ";)L" + MEMORYSTACK + ";", null, null);
+                {
+                    mv.visitCode();
+                    mv.visitVarInsn(ALOAD, 0);
+                    Label l0 = new Label();
+                    mv.visitJumpInsn(IFNONNULL, l0);
+                    mv.visitMethodInsn(INVOKESTATIC, MEMORYSTACK, "stackGet", "()L" + MEMORYSTACK + ";", false);
+                    mv.visitInsn(ARETURN);
+                    mv.visitLabel(l0);
+                    mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitInsn(ARETURN);
+                    mv.visitMaxs(1, 1);
+                    mv.visitEnd();
+                }
+
+                /* Return the pointer of the just acquired stack, or the already saved pointer */
+                mv = cv.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, "$acquirePointer$", "(L" + MEMORYSTACK + ";L" + MEMORYSTACK + ";I)I", null, null);
+                {
+                    mv.visitCode();
+                    mv.visitVarInsn(ALOAD, 1);
+                    Label l0 = new Label();
+                    mv.visitJumpInsn(IFNONNULL, l0);
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, "getPointer", "()I", false);
+                    mv.visitInsn(IRETURN);
+                    mv.visitLabel(l0);
+                    mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+                    mv.visitVarInsn(ILOAD, 2);
+                    mv.visitInsn(IRETURN);
+                    mv.visitMaxs(1, 3);
+                    mv.visitEnd();
+                }
+
+                /* Restore the stack pointer only if the stack was acquired */
+                mv = cv.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, "$restoreStack$", "(L" + MEMORYSTACK + ";I)V", null, null);
+                {
+                    mv.visitCode();
+                    mv.visitVarInsn(ALOAD, 0);
+                    Label l0 = new Label();
+                    mv.visitJumpInsn(IFNULL, l0);
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitVarInsn(ILOAD, 1);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, "setPointer", "(I)V", false);
+                    mv.visitLabel(l0);
+                    mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+                    mv.visitInsn(RETURN);
+                    mv.visitMaxs(2, 2);
+                    mv.visitEnd();
+                }
+            }
+
             public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
                 if ("Lorg/lwjglx/autostack/UseCallerStack;".equals(desc)) {
                     if (debugTransform)
                         System.out.println("[autostack]   class declares to use caller stack for all methods, unless overridden by method");
                     classDefaultNewStack = false;
+                    classDeclaresStack = true;
                     return null;
                 } else if ("Lorg/lwjglx/autostack/UseNewStack;".equals(desc)) {
                     if (debugTransform)
                         System.out.println("[autostack]   class declares to use new stack for all methods, unless overridden by method");
                     classDefaultNewStack = true;
+                    classDeclaresStack = true;
                     return null;
                 } else if ("Lorg/lwjglx/autostack/NoTransform;".equals(desc)) {
                 	if (debugTransform)
@@ -284,15 +1209,13 @@ class Transformer implements ClassFileTransformer {
                 return cv.visitAnnotation(desc, visible);
             }
 
-            public MethodVisitor visitMethod(final int access, final String name, final String desc, String signature, String[] exceptions) {
+            private MethodVisitor transformMethod(final int access, final String name, final String desc, String signature, String[] exceptions, final int maxLocals, final int[] regions, final Handle[] lambdas, final boolean[] returnedAllocations, final StackEscapes.LoopFrames loopFrames, final ConstantAllocations.Slice[] slices, final boolean[] reusedFrames) {
                 Integer info = stackMethods.get(name + desc);
-                if (info == null)
-                    return super.visitMethod(access, name, desc, signature, exceptions);
                 boolean catches = (info.intValue() & 1) == 1;
                 final boolean notransform = classNoTransform || (info.intValue() & 2) == 2;
                 if (debugTransform && !notransform)
                     System.out.println("[autostack]   transform method: " + className.replace('/', '.') + "." + name);
-                final boolean memoryStackParam = stackAsParameter && (access & ACC_PRIVATE) != 0 && (info.intValue() & 16) == 0;
+                final boolean memoryStackParam = stackAsParameter && (info.intValue() & 8) != 0 && (info.intValue() & 16) == 0;
                 MethodVisitor mv;
                 final Type[] paramTypes = Type.getArgumentTypes(desc);
                 final boolean isStatic = (access & ACC_STATIC) != 0;
@@ -338,11 +1261,27 @@ class Transformer implements ClassFileTransformer {
                     Label tryLabel = new Label();
                     Label finallyLabel = new Label();
                     int lastLine = 0;
-                    boolean newStack = classDefaultNewStack;
+                    boolean newStack = inferredNewStack.containsKey(name + desc) ? inferredNewStack.get(name + desc).booleanValue() : classDefaultNewStack;
+                    boolean lazy;
                     int stackVarIndex;
                     int stackPointerVarIndex;
                     int firstAdditionalLocal;
                     int additionalLocals;
+                    int spillLocals;
+                    int regionLocals;
+                    int regionVarIndex;
+                    int loopLocals;
+                    int loopVarIndex;
+                    int labelInsn;
+                    int jumpInsn;
+                    int pendingLoopSave = -1;
+                    int sliceLocals;
+                    int sliceVarIndex;
+                    int regionInsn;
+                    int lambdaInsn;
+                    int invocationInsn;
+                    int uninitializedNews;
+                    boolean tryStarted;
                     Object[] replacedLocals;
 
                     public void visitInsn(int opcode) {
@@ -357,9 +1296,7 @@ class Transformer implements ClassFileTransformer {
                                 mv.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream", "println", "(Ljava/lang/String;)V", false);
                             }
                             if (newStack && !checkStack) {
-                                mv.visitVarInsn(ALOAD, stackVarIndex);
-                                mv.visitVarInsn(ILOAD, stackPointerVarIndex);
-                                mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, "setPointer", "(I)V", false);
+                                restoreStack();
                             } else if (checkStack) {
                                 mv.visitVarInsn(ILOAD, stackPointerVarIndex);
                                 mv.visitVarInsn(ALOAD, stackVarIndex);
@@ -430,6 +1367,49 @@ class Transformer implements ClassFileTransformer {
                             mv.visitFrame(type, nLocal + additionalLocals, locals, nStack, stack);
                         } else
                             mv.visitFrame(type, nLocal, local, nStack, stack);
+                        if (pendingLoopSave != -1) {
+                            saveLoopPointer(pendingLoopSave);
+                            pendingLoopSave = -1;
+                        }
+                    }
+
+                    public void visitLabel(Label label) {
+                        mv.visitLabel(label);
+                        if (notransform || loopFrames == null)
+                            return;
+                        int loop = loopFrames.saves[labelInsn++];
+                        if (loop == -1)
+                            return;
+                        if (classVersion >= V1_6)
+                            // The header of the loop is a jump target, so save the pointer after its stack map frame
+                            pendingLoopSave = loop;
+                        else
+                            saveLoopPointer(loop);
+                    }
+
+                    public void visitJumpInsn(int opcode, Label label) {
+                        if (!notransform && loopFrames != null) {
+                            int loop = loopFrames.restores[jumpInsn++];
+                            if (loop != -1) {
+                                if (debugTransform)
+                                    System.out.println("[autostack]     restore stack pointer of loop iteration at line " + lastLine + " --> iload " + (loopVarIndex + loop));
+                                loadStack();
+                                mv.visitVarInsn(ILOAD, loopVarIndex + loop);
+                                mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, "setPointer", "(I)V", false);
+                            }
+                        }
+                        mv.visitJumpInsn(opcode, label);
+                    }
+
+                    /**
+                     * Save the stack pointer at the header of a loop whose iterations each use their own stack frame.
+                     */
+                    private void saveLoopPointer(int loop) {
+                        if (debugTransform)
+                            System.out.println("[autostack]     save stack pointer of loop iteration at line " + lastLine + " --> istore " + (loopVarIndex + loop));
+                        loadStack();
+                        mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, "getPointer", "()I", false);
+                        mv.visitVarInsn(ISTORE, loopVarIndex + loop);
                     }
 
                     public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
@@ -442,144 +1422,296 @@ class Transformer implements ClassFileTransformer {
                         mv.visitLocalVariable(name, desc, signature, start, end, index);
                     }
 
+                    /**
+                     * Load the stack onto the operand stack, acquiring it and saving its pointer first when lazily
+                     * acquiring the stack.
+                     */
+                    private void loadStack() {
+                        mv.visitVarInsn(ALOAD, stackVarIndex);
+                        if (!lazy)
+                            return;
+                        if (newStack) {
+                            mv.visitInsn(DUP);
+                            mv.visitMethodInsn(INVOKESTATIC, className, "$acquireStack$", "(L" + MEMORYSTACK + ";)L" + MEMORYSTACK + ";", false);
+                            mv.visitInsn(DUP);
+                            mv.visitVarInsn(ASTORE, stackVarIndex);
+                            mv.visitInsn(SWAP);
+                            mv.visitVarInsn(ILOAD, stackPointerVarIndex);
+                            mv.visitMethodInsn(INVOKESTATIC, className, "$acquirePointer$", "(L" + MEMORYSTACK + ";L" + MEMORYSTACK + ";I)I", false);
+                            mv.visitVarInsn(ISTORE, stackPointerVarIndex);
+                            mv.visitVarInsn(ALOAD, stackVarIndex);
+                        } else {
+                            mv.visitMethodInsn(INVOKESTATIC, className, "$acquireStack$", "(L" + MEMORYSTACK + ";)L" + MEMORYSTACK + ";", false);
+                            mv.visitInsn(DUP);
+                            mv.visitVarInsn(ASTORE, stackVarIndex);
+                        }
+                    }
+
+                    private void restoreStack() {
+                        mv.visitVarInsn(ALOAD, stackVarIndex);
+                        mv.visitVarInsn(ILOAD, stackPointerVarIndex);
+                        if (lazy)
+                            mv.visitMethodInsn(INVOKESTATIC, className, "$restoreStack$", "(L" + MEMORYSTACK + ";I)V", false);
+                        else
+                            mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, "setPointer", "(I)V", false);
+                    }
+
+                    /**
+                     * Load the stack beneath the given arguments of an invocation on the operand stack. Arguments of more
+                     * than two words are spilled to locals past all locals of the method and reloaded afterwards.
+                     * <p>
+                     * The spill locals are only live within a single basic block, so no stack map frame needs to know them.
+                     */
+                    private void loadStackBeneath(Type[] argTypes) {
+                        int size = 0;
+                        for (Type argType : argTypes)
+                            size += argType.getSize();
+                        if (size == 0) {
+                            loadStack();
+                            return;
+                        } else if (size == 1) {
+                            loadStack();
+                            mv.visitInsn(SWAP);
+                            return;
+                        } else if (size == 2) {
+                            loadStack();
+                            mv.visitInsn(DUP_X2);
+                            mv.visitInsn(POP);
+                            return;
+                        }
+                        int spillLocal = maxLocals + additionalLocals + sliceLocals;
+                        int[] vars = new int[argTypes.length];
+                        for (int i = 0, var = spillLocal; i < argTypes.length; i++) {
+                            vars[i] = var;
+                            var += argTypes[i].getSize();
+                        }
+                        spillLocals = Math.max(spillLocals, size);
+                        for (int i = argTypes.length - 1; i >= 0; i--)
+                            mv.visitVarInsn(argTypes[i].getOpcode(ISTORE), vars[i]);
+                        loadStack();
+                        for (int i = 0; i < argTypes.length; i++)
+                            mv.visitVarInsn(argTypes[i].getOpcode(ILOAD), vars[i]);
+                    }
+
+                    /**
+                     * Replace pushing a stack frame by saving the stack pointer in the given local, and popping it by
+                     * restoring the stack pointer from it.
+                     */
+                    private void lowerRegionInsn(int opcode, String name, int var) {
+                        if (debugTransform)
+                            System.out.println("[autostack]     lower invocation of " + MEMORYSTACK.replace('/', '.') + "." + name + " at line " + lastLine + " --> " + (name.equals("stackPush") ? "istore " : "iload ") + var);
+                        if (opcode == INVOKESTATIC)
+                            loadStack();
+                        if (name.equals("stackPush")) {
+                            mv.visitInsn(DUP);
+                            mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, "getPointer", "()I", false);
+                            mv.visitVarInsn(ISTORE, var);
+                        } else {
+                            if (!name.equals("close"))
+                                mv.visitInsn(DUP);
+                            mv.visitVarInsn(ILOAD, var);
+                            mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, "setPointer", "(I)V", false);
+                        }
+                    }
+
                     private boolean doesNotTakeStackItself(String desc) {
                         return desc.lastIndexOf("L" + MEMORYSTACK + ";)") == -1;
                     }
 
+                    public void visitTypeInsn(int opcode, String type) {
+                        if (opcode == NEW)
+                            uninitializedNews++;
+                        mv.visitTypeInsn(opcode, type);
+                    }
+
                     public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+                        visitInvocation(opcode, owner, name, desc, itf);
+                        if (!notransform && isConstructor && !tryStarted && opcode == INVOKESPECIAL && name.equals("<init>")) {
+                            if (uninitializedNews > 0)
+                                uninitializedNews--;
+                            else
+                                visitTryStart(tryLabel);
+                        }
+                    }
+
+                    private void visitInvocation(int opcode, String owner, String name, String desc, boolean itf) {
+                        int invocation = invocationInsn++;
+                        boolean returned = returnedAllocations != null && returnedAllocations[invocation];
+                        if (!notransform && reusedFrames != null && reusedFrames[invocation] && newStack && !checkStack) {
+                            /* No memory allocated in the frame so far is used anymore, so allocate from its start again */
+                            if (debugTransform)
+                                System.out.println("[autostack]     reuse stack frame for invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + " --> iload " + stackPointerVarIndex);
+                            loadStack();
+                            mv.visitVarInsn(ILOAD, stackPointerVarIndex);
+                            mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, "setPointer", "(I)V", false);
+                        }
+                        if (!notransform && slices != null && slices[invocation] != null) {
+                            allocateSlice(slices[invocation], name);
+                            return;
+                        }
+                        if (lazy && newStack && allocatesInFrame(opcode, owner, name, desc)) {
+                            /* Acquire the stack before the invoked method allocates in our frame, so that its pointer is restored */
+                            loadStack();
+                            mv.visitInsn(POP);
+                        }
+                        rewriteMethodInsn(opcode, owner, name, desc, itf);
+                        if (returned && newStack && !notransform) {
+                            /*
+                             * Keep the memory which may be returned by moving the saved stack pointer past it, so that
+                             * only the memory allocated after it is freed.
+                             */
+                            if (debugTransform)
+                                System.out.println("[autostack]     keep returned memory of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + " --> save stack pointer again");
+                            loadStack();
+                            mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, "getPointer", "()I", false);
+                            mv.visitVarInsn(ISTORE, stackPointerVarIndex);
+                        }
+                    }
+
+                    /**
+                     * Replace a constant-size allocation by a slice of the single allocation of its run, which is made
+                     * at the first allocation of the run.
+                     */
+                    private void allocateSlice(ConstantAllocations.Slice slice, String name) {
+                        ConstantAllocations.Run run = slice.run;
+                        if (debugTransform)
+                            System.out.println("[autostack]     coalesce invocation of " + MEMORYSTACK.replace('/', '.') + "." + name + " at line " + lastLine + " --> "
+                                    + (run != null ? (run.zeroed ? "ncalloc(" : "nmalloc(") + run.size + ") + " : "lload " + sliceVarIndex + " + ") + slice.offset
+                                    + (slice.offset != slice.offset32 ? " (" + slice.offset32 + " with 32 bit pointers)" : ""));
+                        /* The constant number of elements is pushed again after the address */
+                        mv.visitInsn(POP);
+                        if (run != null) {
+                            loadStack();
+                            pushPointerSized(run.alignment32, run.alignment);
+                            if (run.zeroed) {
+                                mv.visitInsn(ICONST_1);
+                                pushPointerSized(run.size32, run.size);
+                                mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, "ncalloc", "(III)J", false);
+                            } else {
+                                pushPointerSized(run.size32, run.size);
+                                mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, "nmalloc", "(II)J", false);
+                            }
+                            mv.visitInsn(DUP2);
+                            mv.visitVarInsn(LSTORE, sliceVarIndex);
+                        } else {
+                            mv.visitVarInsn(LLOAD, sliceVarIndex);
+                            pushPointerSized(slice.offset32, slice.offset);
+                            mv.visitInsn(I2L);
+                            mv.visitInsn(LADD);
+                        }
+                        mv.visitLdcInsn(Integer.valueOf(slice.count));
+                        mv.visitMethodInsn(INVOKESTATIC, "org/lwjgl/system/MemoryUtil", slice.method, slice.desc, false);
+                    }
+
+                    /**
+                     * Push the given int value for 32 or 64 bit pointers, depending on <code>Pointer.POINTER_SIZE</code>
+                     * at runtime. Without branching, the difference is scaled by <code>(POINTER_SIZE - 4) / 4</code>,
+                     * which the JIT folds into a constant.
+                     */
+                    private void pushPointerSized(int value32, int value64) {
+                        mv.visitLdcInsn(Integer.valueOf(value32));
+                        if (value32 == value64)
+                            return;
+                        mv.visitFieldInsn(GETSTATIC, "org/lwjgl/system/Pointer", "POINTER_SIZE", "I");
+                        mv.visitInsn(ICONST_4);
+                        mv.visitInsn(ISUB);
+                        mv.visitLdcInsn(Integer.valueOf(value64 - value32));
+                        mv.visitInsn(IMUL);
+                        mv.visitInsn(ICONST_2);
+                        mv.visitInsn(ISHR);
+                        mv.visitInsn(IADD);
+                    }
+
+                    /**
+                     * Determine whether the given invocation may allocate in the frame of this method without being
+                     * rewritten to use the stack of this method, which acquires the stack anyway.
+                     */
+                    private boolean allocatesInFrame(int opcode, String owner, String name, String desc) {
+                        if (owner.equals(MEMORYSTACK) || RewriteTable.isStackMethod(owner, name) || !doesNotTakeStackItself(desc))
+                            return false;
+                        String completeName = name + desc;
+                        if (owner.equals(className)) {
+                            if (takesStackParam(stackMethods.get(completeName)))
+                                return false;
+                        }
+                        return StackEscapes.isAllocation(opcode, owner, name, desc, className, frameSharingMethods)
+                                || StackEscapes.mayAllocate(owner, name, desc, className, stackMethods.keySet());
+                    }
+
+                    private void rewriteMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
                         String completeName = name + desc;
                         Integer info = stackMethods.get(completeName);
-                        if (opcode != INVOKESTATIC || notransform) {
+                        if (!notransform && regions != null && StackRegions.isRegionInsn(opcode, owner, name)) {
+                            int region = regions[regionInsn++];
+                            if (region != -1) {
+                                lowerRegionInsn(opcode, name, regionVarIndex + region);
+                                return;
+                            }
+                        }
+                        if (notransform) {
                             mv.visitMethodInsn(opcode, owner, name, desc, itf);
                             return;
                         }
-                        if (stackAsParameter && info != null && (info.intValue() & 8) != 0 && (info.intValue() & 16) == 0) {
-                            /* Rewrite invocation to have additional MemoryStack parameter */
+                        if (stackAsParameter && !itf && opcode != INVOKEINTERFACE && (owner.equals(className) ? takesStackParam(info)
+                                : stackParamMethods != null && stackParamMethods.contains(owner + "." + completeName))) {
+                            /* Rewrite invocation of static, private or final method of a transformed class to have additional MemoryStack parameter */
                             if (debugTransform)
                                 System.out.println("[autostack]     rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + " --> " + owner.replace('/', '.') + "." + name + "(..., MemoryStack)");
                             int paramEndIndex = desc.indexOf(')');
                             String beforeDesc = desc.substring(0, paramEndIndex);
                             String afterDesc = desc.substring(paramEndIndex);
-                            mv.visitVarInsn(ALOAD, stackVarIndex);
+                            loadStack();
                             mv.visitMethodInsn(opcode, owner, name, beforeDesc + "L" + MEMORYSTACK + ";" + afterDesc, itf);
                             return;
                         }
-                        if (owner.startsWith("org/lwjgl/") && (name.equals("mallocStack") || name.equals("callocStack")) && doesNotTakeStackItself(desc)) {
-                            if (debugTransform)
-                                System.out.println("[autostack]     rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + " --> aload " + stackVarIndex + "; invokestatic " + owner.replace('/', '.') + "." + name);
-                            mv.visitVarInsn(ALOAD, stackVarIndex);
-                            int paramEndIndex = desc.indexOf(')');
-                            String beforeDesc = desc.substring(0, paramEndIndex);
-                            String afterDesc = desc.substring(paramEndIndex);
-                            mv.visitMethodInsn(opcode, owner, name, beforeDesc + "L" + MEMORYSTACK + ";" + afterDesc, false);
-                        } else if (owner.equals(MEMORYSTACK) && name.equals("stackGet")) {
+                        if (opcode != INVOKESTATIC) {
+                            mv.visitMethodInsn(opcode, owner, name, desc, itf);
+                            return;
+                        }
+                        if (owner.equals(MEMORYSTACK) && name.equals("stackGet")) {
                             if (debugTransform)
                                 System.out.println("[autostack]     rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + " --> aload " + stackVarIndex);
-                            mv.visitVarInsn(ALOAD, stackVarIndex);
-                        } else if (owner.equals(MEMORYSTACK) && (name.equals("stackPush") || name.equals("stackPop"))) {
-                            String newName = "p" + name.substring(6);
-                            if (debugTransform)
-                                System.out.println("[autostack]     rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + " --> aload " + stackVarIndex + "; invokevirtual " + MEMORYSTACK.replace('/', '.') + "." + newName);
-                            mv.visitVarInsn(ALOAD, stackVarIndex);
-                            mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, newName, desc, itf);
-                        } else if (owner.equals(MEMORYSTACK) && (name.startsWith("stackMalloc") || name.startsWith("stackCalloc"))) {
-                            String newName = name.substring(5, 6).toLowerCase() + name.substring(6);
-                            if (debugTransform)
-                                System.out.println("[autostack]     rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + " --> aload " + stackVarIndex + "; invokevirtual " + MEMORYSTACK.replace('/', '.') + "." + newName);
-                            mv.visitVarInsn(ALOAD, stackVarIndex);
-                            mv.visitInsn(SWAP);
-                            mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, newName, desc, itf);
-                        } else if (owner.equals(MEMORYSTACK) && (name.startsWith("nstackMalloc") || name.startsWith("nstackCalloc"))) {
-                            String newName = "n" + name.substring(6, 7).toLowerCase() + name.substring(7);
-                            if (debugTransform)
-                                System.out.println("[autostack]     rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + " --> aload " + stackVarIndex + "; invokevirtual " + MEMORYSTACK.replace('/', '.') + "." + newName);
-                            mv.visitVarInsn(ALOAD, stackVarIndex);
-                            if ("(I)J".equals(desc)) {
-                                mv.visitInsn(SWAP);
-                            } else {
-                                // (II)J
-                                mv.visitInsn(DUP_X2);
-                                mv.visitInsn(POP);
-                            }
-                            mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, newName, desc, itf);
-                        } else if (owner.equals(MEMORYSTACK) && (name.equals("stackASCII") || name.equals("stackUTF8") || name.equals("stackUTF16"))) {
-                            String newName = name.substring(5);
-                            boolean withBoolean = desc.startsWith("(Ljava/lang/CharSequence;Z");
+                            loadStack();
+                            return;
+                        }
+                        RewriteTable.Rewrite rewrite = table.get(owner, name, desc);
+                        if (rewrite == null) {
+                            if (debugTransform && RewriteTable.isStackMethod(owner, name) && doesNotTakeStackItself(desc))
+                                System.out.println("[autostack]     failed to rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + ". No rewrite rule.");
+                            mv.visitMethodInsn(opcode, owner, name, desc, itf);
+                        } else if (rewrite.opcode == INVOKEVIRTUAL) {
                             if (debugTransform)
-                                System.out.println("[autostack]     rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + " --> aload " + stackVarIndex + "; invokevirtual " + MEMORYSTACK.replace('/', '.') + "." + newName);
-                            mv.visitVarInsn(ALOAD, stackVarIndex);
-                            if (withBoolean) {
-                                mv.visitInsn(DUP_X2);
-                                mv.visitInsn(POP);
-                            } else {
-                                mv.visitInsn(SWAP);
-                            }
-                            mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, newName, desc, itf);
-                        } else if (owner.equals(MEMORYSTACK) && (name.equals("stackFloats") || name.equals("stackInts") || name.equals("stackBytes") || name.equals("stackShorts")
-                                || name.equals("stackPointers") && (desc.startsWith("([Lorg/lwjgl/system/Pointer;") || desc.startsWith("(Lorg/lwjgl/system/Pointer;")))) {
-                            String newName = name.substring(5, 6).toLowerCase() + name.substring(6);
-                            Type[] argTypes = Type.getArgumentTypes(desc);
-                            if (argTypes.length == 1 && argTypes[0].getSort() == Type.ARRAY) {
-                                if (debugTransform)
-                                    System.out.println("[autostack]     rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + " --> aload " + stackVarIndex + "; invokevirtual " + MEMORYSTACK.replace('/', '.') + "." + newName);
-                                mv.visitVarInsn(ALOAD, stackVarIndex);
-                                mv.visitInsn(SWAP);
-                                mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, newName, desc, itf);
-                            } else if (argTypes.length == 1) {
-                                if (debugTransform)
-                                    System.out.println("[autostack]     rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + " --> aload " + stackVarIndex + "; invokevirtual " + MEMORYSTACK.replace('/', '.') + "." + newName);
-                                mv.visitVarInsn(ALOAD, stackVarIndex);
-                                mv.visitInsn(SWAP);
-                                mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, newName, desc, itf);
-                            } else if (argTypes.length == 2) {
-                                if (debugTransform)
-                                    System.out.println("[autostack]     rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + " --> aload " + stackVarIndex + "; invokevirtual " + MEMORYSTACK.replace('/', '.') + "." + newName);
-                                mv.visitVarInsn(ALOAD, stackVarIndex);
-                                mv.visitInsn(DUP_X2);
-                                mv.visitInsn(POP);
-                                mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, newName, desc, itf);
-                            } else if (argTypes.length == 3) {
-                                if (debugTransform)
-                                    System.out.println("[autostack]     rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + " --> aload " + stackVarIndex + "; invokevirtual " + MEMORYSTACK.replace('/', '.') + "." + newName);
-                                mv.visitVarInsn(ALOAD, stackVarIndex);
-                                mv.visitInsn(DUP2_X2);
-                                mv.visitInsn(POP);
-                                mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, newName, desc, itf);
-                                mv.visitInsn(SWAP);
-                                mv.visitInsn(POP);
-                            } else {
-                                if (debugTransform)
-                                    System.out.println("[autostack]     failed to rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + ". Not yet implemented.");
-                                /* Give up. Not possible without an additional local */
-                                mv.visitMethodInsn(INVOKESTATIC, MEMORYSTACK, name, desc, itf);
-                            }
-                        } else if (owner.equals(MEMORYSTACK) && name.equals("stackLongs")) {
-                            String newName = name.substring(5, 6).toLowerCase() + name.substring(6);
-                            Type[] argTypes = Type.getArgumentTypes(desc);
-                            if (argTypes.length == 1 && argTypes[0].getSort() == Type.ARRAY) {
-                                if (debugTransform)
-                                    System.out.println("[autostack]     rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + " --> aload " + stackVarIndex + "; invokevirtual " + MEMORYSTACK.replace('/', '.') + "." + newName);
-                                mv.visitVarInsn(ALOAD, stackVarIndex);
-                                mv.visitInsn(SWAP);
-                                mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, newName, desc, itf);
-                            } else if (argTypes.length == 1) {
-                                if (debugTransform)
-                                    System.out.println("[autostack]     rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + " --> aload " + stackVarIndex + "; invokevirtual " + MEMORYSTACK.replace('/', '.') + "." + newName);
-                                mv.visitVarInsn(ALOAD, stackVarIndex);
-                                mv.visitInsn(DUP_X2);
-                                mv.visitInsn(POP);
-                                mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, newName, desc, itf);
-                            } else {
-                                if (debugTransform)
-                                    System.out.println("[autostack]     failed to rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + ". Not yet implemented.");
-                                /* Give up. Not possible without an additional local */
-                                mv.visitMethodInsn(INVOKESTATIC, MEMORYSTACK, name, desc, itf);
-                            }
+                                System.out.println("[autostack]     rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + " --> aload " + stackVarIndex + "; invokevirtual " + rewrite.owner.replace('/', '.') + "." + rewrite.name);
+                            loadStackBeneath(Type.getArgumentTypes(desc));
+                            mv.visitMethodInsn(INVOKEVIRTUAL, rewrite.owner, rewrite.name, rewrite.desc, false);
                         } else {
-                            mv.visitMethodInsn(opcode, owner, name, desc, itf);
+                            if (debugTransform)
+                                System.out.println("[autostack]     rewrite invocation of " + owner.replace('/', '.') + "." + name + " at line " + lastLine + " --> aload " + stackVarIndex + "; invokestatic " + rewrite.owner.replace('/', '.') + "." + rewrite.name);
+                            loadStack();
+                            mv.visitMethodInsn(INVOKESTATIC, rewrite.owner, rewrite.name, rewrite.desc, false);
                         }
                     }
 
+                    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+                        Handle impl = lambdas != null ? lambdas[lambdaInsn++] : null;
+                        if (notransform || impl == null || !takesStackParam(stackMethods.get(impl.getName() + impl.getDesc()))) {
+                            mv.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+                            return;
+                        }
+                        /* Capture the stack in the synchronous lambda, so that it does not need to look it up itself */
+                        if (debugTransform)
+                            System.out.println("[autostack]     rewrite lambda " + impl.getName() + " at line " + lastLine + " to capture stack");
+                        Type[] capturedTypes = Type.getArgumentTypes(desc);
+                        boolean isStatic = impl.getTag() == H_INVOKESTATIC;
+                        loadStackBeneath(isStatic ? capturedTypes : Arrays.copyOfRange(capturedTypes, 1, capturedTypes.length));
+                        String receiver = isStatic ? "" : capturedTypes[0].getDescriptor();
+                        String capturedDesc = "(" + receiver + "L" + MEMORYSTACK + ";" + desc.substring(1 + receiver.length());
+                        Object[] args = bsmArgs.clone();
+                        args[1] = lambdaBridge(impl);
+                        lambdaBridges.put(impl.getName() + impl.getDesc(), impl);
+                        mv.visitInvokeDynamicInsn(name, capturedDesc, bsm, args);
+                    }
+
                     public void visitLineNumber(int line, Label start) {
                         mv.visitLineNumber(line, start);
                         lastLine = line;
@@ -590,14 +1722,19 @@ class Transformer implements ClassFileTransformer {
                             mv.visitCode();
                             return;
                         }
-                        additionalLocals = newStack || checkStack ? 2 : 1;
+                        if (regions != null)
+                            for (int region : regions)
+                                regionLocals = Math.max(regionLocals, region + 1);
+                        int stackLocals = newStack || checkStack ? 2 : 1;
+                        if (loopFrames != null)
+                            loopLocals = loopFrames.locals;
+                        additionalLocals = stackLocals + regionLocals + loopLocals;
                         replacedLocals = new Object[paramTypes.length + additionalLocals + (isStatic ? 0 : 1)];
-                        if (!newStack && !checkStack) {
-                            replacedLocals[replacedLocals.length - 1] = MEMORYSTACK;
-                        } else {
-                            replacedLocals[replacedLocals.length - 2] = MEMORYSTACK;
-                            replacedLocals[replacedLocals.length - 1] = INTEGER;
-                        }
+                        int stackLocal = replacedLocals.length - additionalLocals;
+                        replacedLocals[stackLocal] = MEMORYSTACK;
+                        if (stackLocals == 2)
+                            replacedLocals[stackLocal + 1] = INTEGER;
+                        Arrays.fill(replacedLocals, stackLocal + stackLocals, replacedLocals.length, INTEGER);
                         if (!isStatic)
                             replacedLocals[0] = isConstructor ? TOP : className;
                         int var = isStatic ? 0 : 1;
@@ -632,8 +1769,33 @@ class Transformer implements ClassFileTransformer {
                         firstAdditionalLocal = var;
                         stackVarIndex = var;
                         stackPointerVarIndex = var + 1;
+                        regionVarIndex = var + stackLocals;
+                        loopVarIndex = regionVarIndex + regionLocals;
+                        if (slices != null) {
+                            /* The address of a run of allocations is only used within straight-line code, so it is never part of a frame */
+                            sliceLocals = 2;
+                            sliceVarIndex = maxLocals + additionalLocals;
+                        }
                         mv.visitCode();
-                        if (newStack && !checkStack || checkStack) {
+                        for (int i = 0; i < regionLocals + loopLocals; i++) {
+                            mv.visitInsn(ICONST_0);
+                            mv.visitVarInsn(ISTORE, regionVarIndex + i);
+                        }
+                        lazy = lazyStack && !checkStack && !memoryStackParam;
+                        if (lazy) {
+                            /* Acquire the stack and save its pointer only when it is first used */
+                            mv.visitInsn(ACONST_NULL);
+                            mv.visitVarInsn(ASTORE, stackVarIndex);
+                            if (newStack) {
+                                mv.visitInsn(ICONST_0);
+                                mv.visitVarInsn(ISTORE, stackPointerVarIndex);
+                            }
+                            visitTryStart(isConstructor ? new Label() : tryLabel);
+                            if (newStack)
+                                visitBodyFrame(MEMORYSTACK, INTEGER);
+                            else
+                                visitBodyFrame(MEMORYSTACK);
+                        } else if (newStack && !checkStack || checkStack) {
                             if (!memoryStackParam) {
                                 mv.visitMethodInsn(INVOKESTATIC, MEMORYSTACK, "stackGet", "()L"+ MEMORYSTACK + ";", false);
                                 mv.visitInsn(DUP);
@@ -655,11 +1817,11 @@ class Transformer implements ClassFileTransformer {
                                 mv.visitLdcInsn("] at begin of " + className.replace('/', '.') + "." + name);
                                 mv.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream", "println", "(Ljava/lang/String;)V", false);
                             }
-                            mv.visitLabel(tryLabel);
+                            visitTryStart(isConstructor ? new Label() : tryLabel);
                             if (!memoryStackParam)
-                                mv.visitFrame(F_APPEND, 2, new Object[] {MEMORYSTACK, INTEGER}, 0, null);
+                                visitBodyFrame(MEMORYSTACK, INTEGER);
                             else
-                                mv.visitFrame(F_APPEND, 1, new Object[] {INTEGER}, 0, null);
+                                visitBodyFrame(INTEGER);
                         } else if (!newStack && !checkStack) {
                             if (!memoryStackParam) {
                                 mv.visitMethodInsn(INVOKESTATIC, MEMORYSTACK, "stackGet", "()L"+ MEMORYSTACK + ";", false);
@@ -678,18 +1840,42 @@ class Transformer implements ClassFileTransformer {
                                 mv.visitLdcInsn("] at begin of " + className.replace('/', '.') + "." + name);
                                 mv.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream", "println", "(Ljava/lang/String;)V", false);
                             }
-                            mv.visitLabel(tryLabel);
+                            visitTryStart(isConstructor ? new Label() : tryLabel);
                             if (!memoryStackParam)
-                                mv.visitFrame(F_APPEND, 1, new Object[] {MEMORYSTACK}, 0, null);
+                                visitBodyFrame(MEMORYSTACK);
+                            else
+                                visitBodyFrame();
                         }
                     }
 
+                    /**
+                     * Visit the start of the range of the handler restoring the stack. In constructors, the range only
+                     * starts once <code>this</code> is initialized, since no handler may cover the code before.
+                     */
+                    private void visitTryStart(Label label) {
+                        mv.visitLabel(label);
+                        tryStarted |= label == tryLabel;
+                    }
+
+                    /**
+                     * Visit the frame at the start of the original method body, appending the given locals and the
+                     * {@link #regionLocals} and {@link #loopLocals}.
+                     */
+                    private void visitBodyFrame(Object... appended) {
+                        Object[] locals = Arrays.copyOf(appended, appended.length + regionLocals + loopLocals);
+                        Arrays.fill(locals, appended.length, locals.length, INTEGER);
+                        if (locals.length > 3)
+                            mv.visitFrame(F_FULL, replacedLocals.length, replacedLocals, 0, null);
+                        else if (locals.length > 0)
+                            mv.visitFrame(F_APPEND, locals.length, locals, 0, null);
+                    }
+
                     public void visitMaxs(int maxStack, int maxLocals) {
                         if (notransform) {
                             mv.visitMaxs(maxStack, maxLocals);
                             return;
                         }
-                        if (newStack && !checkStack || checkStack) {
+                        if ((newStack && !checkStack || checkStack) && tryStarted) {
                             mv.visitLabel(finallyLabel);
                             mv.visitFrame(F_FULL, replacedLocals.length, replacedLocals, 1, new Object[] {"java/lang/Throwable"});
                             mv.visitTryCatchBlock(tryLabel, finallyLabel, finallyLabel, null);
@@ -707,9 +1893,7 @@ class Transformer implements ClassFileTransformer {
                                 mv.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream", "println", "(Ljava/lang/String;)V", false);
                             }
                             if (newStack && !checkStack) {
-                                mv.visitVarInsn(ALOAD, stackVarIndex);
-                                mv.visitVarInsn(ILOAD, stackPointerVarIndex);
-                                mv.visitMethodInsn(INVOKEVIRTUAL, MEMORYSTACK, "setPointer", "(I)V", false);
+                                restoreStack();
                             }
                             if (checkStack) {
                                 mv.visitVarInsn(ILOAD, stackPointerVarIndex);
@@ -719,21 +1903,19 @@ class Transformer implements ClassFileTransformer {
                             }
                             mv.visitInsn(ATHROW);
                         }
-                        mv.visitMaxs(-1, maxLocals + additionalLocals);
+                        mv.visitMaxs(-1, maxLocals + additionalLocals + sliceLocals + spillLocals);
                     }
                 };
                 return mv;
             }
         }, 0);
+        if (stackMethods.isEmpty())
+            return null;
         byte[] arr = cw.toByteArray();
         if (trace) {
             cr = new ClassReader(arr);
             cr.accept(new TraceClassVisitor(new PrintWriter(System.out)), 0);
         }
         return arr;
-        } catch (Throwable t) {
-            t.printStackTrace();
-            throw new RuntimeException(t);
-        }
     }
 }
@@ -0,0 +1,117 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import static org.junit.Assert.*;
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.system.Pointer.*;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.lwjgl.PointerBuffer;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Tests of serving consecutive allocations with constant sizes by a single allocation with
+ * {@link Transformer#setCoalesce(boolean)}.
+ *
+ * @author Kai Burjack
+ */
+public class CoalesceTest {
+
+    static class Allocations {
+        static long[] addresses() {
+            IntBuffer a = stackMallocInt(1);
+            PointerBuffer b = stackCallocPointer(2);
+            IntBuffer c = stackMallocInt(1);
+            a.put(0, 1);
+            c.put(0, 3);
+            return new long[] { memAddress(a), memAddress(b), memAddress(c), b.get(0) | b.get(1), a.get(0) + c.get(0) };
+        }
+    }
+
+    private static TransformingClassLoader loader(boolean coalesce) {
+        Transformer transformer = TransformingClassLoader.transformer();
+        transformer.setCoalesce(coalesce);
+        return new TransformingClassLoader(transformer, Allocations.class);
+    }
+
+    private static MethodNode untransformed(Class<?> sample, String name) throws IOException {
+        ClassNode cn = new ClassNode();
+        new ClassReader(sample.getName()).accept(cn, 0);
+        for (MethodNode mn : cn.methods)
+            if (mn.name.equals(name))
+                return mn;
+        throw new AssertionError("No method " + name + " in " + sample.getName());
+    }
+
+    @Test
+    public void coalescesAllocations() throws Throwable {
+        TransformingClassLoader loader = loader(true);
+        MethodNode mn = loader.method(Allocations.class, "addresses");
+        assertEquals(1, TransformingClassLoader.invocations(mn, RewriteTable.MEMORYSTACK, "ncalloc"));
+        assertEquals(0, TransformingClassLoader.invocations(mn, RewriteTable.MEMORYSTACK, "stackMallocInt"));
+        long[] addresses = (long[]) loader.invoke(Allocations.class, "addresses");
+        assertEquals(0, addresses[1] % POINTER_SIZE);
+        assertEquals(addresses[0] + POINTER_SIZE, addresses[1]);
+        // With 64 bit pointers, the alignment gap before the pointers is used
+        assertEquals(addresses[0] + (POINTER_SIZE == 8 ? 4 : 12), addresses[2]);
+        assertEquals(0, addresses[3]);
+        assertEquals(4, addresses[4]);
+        assertEquals(0, loader.leaked(Allocations.class, "addresses"));
+    }
+
+    @Test
+    public void keepsAllocationsByDefault() throws Throwable {
+        TransformingClassLoader loader = loader(false);
+        MethodNode mn = loader.method(Allocations.class, "addresses");
+        assertEquals(0, TransformingClassLoader.invocations(mn, RewriteTable.MEMORYSTACK, "ncalloc"));
+        assertEquals(0, loader.leaked(Allocations.class, "addresses"));
+    }
+
+    @Test
+    public void laysOutPointersForBothPointerSizes() throws Throwable {
+        MethodNode mn = untransformed(Allocations.class, "addresses");
+        ConstantAllocations.Slice[] slices = ConstantAllocations.analyze(mn, Type.getInternalName(Allocations.class), Collections.<String>emptySet(),
+                Collections.<String>emptySet(), null, true);
+        assertNotNull(slices);
+        ConstantAllocations.Run run = slices[0].run;
+        assertEquals(4 + 4 + 2 * 8, run.size);
+        assertEquals(8, run.alignment);
+        assertEquals(4 + 2 * 4 + 4, run.size32);
+        assertEquals(4, run.alignment32);
+        assertTrue(run.zeroed);
+        assertEquals(8, slices[1].offset);
+        assertEquals(4, slices[1].offset32);
+        assertEquals(4, slices[2].offset);
+        assertEquals(12, slices[2].offset32);
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import static org.junit.Assert.*;
+import static org.lwjgl.system.MemoryStack.*;
+
+import org.junit.Test;
+import org.lwjgl.system.MemoryStack;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+/**
+ * Tests of lowering explicit stack frames to saved stack pointer locals.
+ *
+ * @author Kai Burjack
+ */
+public class ExplicitFramesTest {
+
+    static class TryWithResources {
+        static int run(int n, boolean fail) {
+            int r = 0;
+            try (MemoryStack s = stackPush()) {
+                r += s.mallocInt(n).capacity();
+                try (MemoryStack t = stackPush()) {
+                    r += t.mallocInt(n).capacity();
+                    if (fail)
+                        throw new IllegalStateException();
+                }
+            } catch (IllegalStateException e) {
+                r = -stackGet().getPointer();
+            }
+            return r;
+        }
+    }
+
+    @Test
+    public void restoresFramesOnException() throws Throwable {
+        TransformingClassLoader loader = new TransformingClassLoader(TransformingClassLoader.transformer(), TryWithResources.class);
+        assertEquals(0, loader.leaked(TryWithResources.class, "run", 4, false));
+        assertEquals(8, loader.invoke(TryWithResources.class, "run", 4, false));
+        MemoryStack stack = MemoryStack.stackGet();
+        assertEquals(-stack.getPointer(), loader.invoke(TryWithResources.class, "run", 4, true));
+        assertEquals(0, loader.leaked(TryWithResources.class, "run", 4, true));
+    }
+
+    @Test
+    public void removesHandlersOfClose() throws Throwable {
+        TransformingClassLoader loader = new TransformingClassLoader(TransformingClassLoader.transformer(), TryWithResources.class);
+        MethodNode mn = loader.method(TryWithResources.class, "run");
+        assertEquals(0, TransformingClassLoader.invocations(mn, "org/lwjgl/system/MemoryStack", "close"));
+        for (TryCatchBlockNode tcb : mn.tryCatchBlocks) {
+            AbstractInsnNode insn = tcb.handler;
+            while (!(insn instanceof MethodInsnNode) && insn.getOpcode() != Opcodes.ATHROW)
+                insn = insn.getNext();
+            assertFalse("handler adding suppressed exceptions of close()", insn instanceof MethodInsnNode && ((MethodInsnNode) insn).name.equals("addSuppressed"));
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import static org.junit.Assert.*;
+import static org.lwjgl.system.MemoryStack.*;
+
+import java.nio.IntBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests of folding the frames of private helper methods into their callers with
+ * {@link Transformer#setFoldFrames(boolean)}.
+ *
+ * @author Kai Burjack
+ */
+public class FoldFramesTest {
+
+    static class Helpers {
+        private static int helper(int n) {
+            IntBuffer b = stackMallocInt(n);
+            b.put(0, n);
+            return b.get(0);
+        }
+
+        private static int loopHelper(int n) {
+            return stackMallocInt(n).capacity();
+        }
+
+        static int run(int n) {
+            int sum = helper(n) + stackMallocInt(1).capacity();
+            for (int i = 0; i < n; i++)
+                sum += loopHelper(256);
+            return sum;
+        }
+    }
+
+    private static TransformingClassLoader loader(boolean foldFrames) {
+        Transformer transformer = TransformingClassLoader.transformer();
+        transformer.setFoldFrames(foldFrames);
+        return new TransformingClassLoader(transformer, Helpers.class);
+    }
+
+    @Test
+    public void foldsHelperFrames() throws Throwable {
+        TransformingClassLoader loader = loader(true);
+        assertEquals(0, TransformingClassLoader.invocations(loader.method(Helpers.class, "helper"), RewriteTable.MEMORYSTACK, "getPointer"));
+        // Invoked in a loop, so that its frame is kept
+        assertEquals(1, TransformingClassLoader.invocations(loader.method(Helpers.class, "loopHelper"), RewriteTable.MEMORYSTACK, "getPointer"));
+        // The memory of all iterations would exceed the default stack size of 64 KiB
+        assertEquals(100 + 1 + 100 * 256, loader.invoke(Helpers.class, "run", 100));
+        assertEquals(0, loader.leaked(Helpers.class, "run", 100));
+    }
+
+    @Test
+    public void keepsHelperFramesByDefault() throws Throwable {
+        TransformingClassLoader loader = loader(false);
+        assertEquals(1, TransformingClassLoader.invocations(loader.method(Helpers.class, "helper"), RewriteTable.MEMORYSTACK, "getPointer"));
+        assertEquals(0, loader.leaked(Helpers.class, "run", 100));
+    }
+
+}
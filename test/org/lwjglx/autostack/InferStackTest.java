@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import static org.junit.Assert.*;
+import static org.lwjgl.system.MemoryStack.*;
+
+import java.nio.IntBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests of inferring the stack lifecycle of methods with {@link Transformer#setInferStack(boolean)}.
+ *
+ * @author Kai Burjack
+ */
+public class InferStackTest {
+
+    static class Inferred {
+        static int scratch(int n) {
+            IntBuffer b = stackMallocInt(n);
+            b.put(0, n);
+            return b.get(0);
+        }
+
+        static IntBuffer result(int n) {
+            IntBuffer b = stackMallocInt(n);
+            b.put(0, n);
+            return b;
+        }
+
+        static IntBuffer wrap(int n) {
+            return result(n);
+        }
+
+        static int pointer() {
+            return stackGet().getPointer();
+        }
+
+        static int caller(int n) {
+            return result(n).get(0) + scratch(n);
+        }
+    }
+
+    private static TransformingClassLoader loader() {
+        Transformer transformer = TransformingClassLoader.transformer();
+        transformer.setInferStack(true);
+        return new TransformingClassLoader(transformer, Inferred.class);
+    }
+
+    @Test
+    public void usesNewStackForScratchMemory() throws Throwable {
+        TransformingClassLoader loader = loader();
+        assertEquals(0, loader.leaked(Inferred.class, "scratch", 8));
+        assertEquals(8, loader.invoke(Inferred.class, "scratch", 8));
+        assertEquals(1, TransformingClassLoader.invocations(loader.method(Inferred.class, "scratch"), RewriteTable.MEMORYSTACK, "getPointer"));
+    }
+
+    @Test
+    public void keepsReturnedMemory() throws Throwable {
+        TransformingClassLoader loader = loader();
+        assertEquals(8 * 4, loader.leaked(Inferred.class, "result", 8));
+        assertEquals(8 * 4, loader.leaked(Inferred.class, "wrap", 8));
+        assertEquals(0, loader.leaked(Inferred.class, "caller", 8));
+        assertEquals(16, loader.invoke(Inferred.class, "caller", 8));
+    }
+
+    @Test
+    public void omitsFrameWithoutAllocation() throws Throwable {
+        TransformingClassLoader loader = loader();
+        assertEquals(0, loader.leaked(Inferred.class, "pointer"));
+        assertEquals(0, TransformingClassLoader.invocations(loader.method(Inferred.class, "pointer"), RewriteTable.MEMORYSTACK, "setPointer"));
+    }
+
+}
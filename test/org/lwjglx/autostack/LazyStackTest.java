@@ -0,0 +1,125 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import static org.junit.Assert.*;
+import static org.lwjgl.system.MemoryStack.*;
+
+import java.nio.IntBuffer;
+
+import org.junit.Test;
+import org.lwjgl.system.Configuration;
+import org.lwjgl.system.MemoryStack;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Tests of the lazily acquired stack of {@link Transformer#setLazyStack(boolean)}.
+ *
+ * @author Kai Burjack
+ */
+public class LazyStackTest {
+
+    static class CallerAllocating {
+        @UseCallerStack
+        static int helper() {
+            IntBuffer ib = stackMallocInt(4);
+            ib.put(0, 23);
+            return ib.get(0);
+        }
+
+        static int run(boolean own) {
+            if (own)
+                return stackMallocInt(1).capacity();
+            return helper();
+        }
+    }
+
+    @Test
+    public void acquiresStackBeforeCallAllocatingInFrame() throws Throwable {
+        Transformer transformer = TransformingClassLoader.transformer();
+        transformer.setLazyStack(true);
+        TransformingClassLoader loader = new TransformingClassLoader(transformer, CallerAllocating.class);
+        assertEquals(0, loader.leaked(CallerAllocating.class, "run", false));
+        assertEquals(0, loader.leaked(CallerAllocating.class, "run", true));
+        assertEquals(23, loader.invoke(CallerAllocating.class, "run", false));
+    }
+
+    static class BranchAllocating {
+        static int run(boolean own) {
+            if (own)
+                return stackMallocInt(1).capacity();
+            return 2;
+        }
+    }
+
+    /**
+     * Run the given path of {@link BranchAllocating#run(boolean)} on a fresh thread and determine whether the stack of the
+     * thread was created by it. Stacks created while {@link Configuration#DEBUG_STACK} is set are of a subclass of
+     * {@link MemoryStack}.
+     */
+    private static boolean createsStack(final TransformingClassLoader loader, final boolean own) throws Throwable {
+        final Object[] result = new Object[1];
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    Configuration.DEBUG_STACK.set(Boolean.TRUE);
+                    try {
+                        assertEquals(own ? 1 : 2, loader.invoke(BranchAllocating.class, "run", own));
+                    } finally {
+                        Configuration.DEBUG_STACK.set(null);
+                    }
+                    result[0] = Boolean.valueOf(stackGet().getClass() != MemoryStack.class);
+                } catch (Throwable t) {
+                    result[0] = t;
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        if (result[0] instanceof Throwable)
+            throw (Throwable) result[0];
+        return ((Boolean) result[0]).booleanValue();
+    }
+
+    @Test
+    public void doesNotAcquireStackWithoutAllocation() throws Throwable {
+        Transformer transformer = TransformingClassLoader.transformer();
+        transformer.setLazyStack(true);
+        TransformingClassLoader loader = new TransformingClassLoader(transformer, BranchAllocating.class);
+        MethodNode mn = loader.method(BranchAllocating.class, "run");
+        // Only acquired on the allocating branch
+        assertEquals(0, TransformingClassLoader.invocations(mn, RewriteTable.MEMORYSTACK, "stackGet"));
+        assertEquals(1, TransformingClassLoader.invocations(mn, Type.getInternalName(BranchAllocating.class), "$acquireStack$"));
+        assertFalse(createsStack(loader, false));
+        assertTrue(createsStack(loader, true));
+    }
+
+    @Test
+    public void acquiresStackOnEntryByDefault() throws Throwable {
+        TransformingClassLoader loader = new TransformingClassLoader(TransformingClassLoader.transformer(), BranchAllocating.class);
+        assertEquals(1, TransformingClassLoader.invocations(loader.method(BranchAllocating.class, "run"), RewriteTable.MEMORYSTACK, "stackGet"));
+        assertTrue(createsStack(loader, false));
+    }
+
+}
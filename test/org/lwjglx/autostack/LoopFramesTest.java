@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import static org.junit.Assert.*;
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import org.junit.Test;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.jni.JNINativeMethod;
+
+/**
+ * Tests of giving loop iterations their own stack frame with {@link Transformer#setLoopStack(boolean)}.
+ *
+ * @author Kai Burjack
+ */
+public class LoopFramesTest {
+
+    static class Loops {
+        static int sizes(int n) {
+            int sum = 0;
+            for (int i = 0; i < n; i++)
+                sum += stackMallocInt(256).capacity();
+            return sum;
+        }
+
+        static String pointers(String[] names) {
+            PointerBuffer pp = stackMallocPointer(names.length);
+            for (int i = 0; i < names.length; i++)
+                pp.put(i, stackUTF8(names[i]));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < names.length; i++)
+                sb.append(memUTF8(pp.get(i)));
+            return sb.toString();
+        }
+
+        static String structs(String[] names) {
+            JNINativeMethod.Buffer methods = JNINativeMethod.mallocStack(names.length);
+            for (int i = 0; i < names.length; i++)
+                methods.get(i).name(stackUTF8(names[i]));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < names.length; i++)
+                sb.append(methods.get(i).nameString());
+            return sb.toString();
+        }
+    }
+
+    private static TransformingClassLoader loader(boolean loopStack) {
+        Transformer transformer = TransformingClassLoader.transformer();
+        transformer.setLoopStack(loopStack);
+        return new TransformingClassLoader(transformer, Loops.class);
+    }
+
+    private static String[] names(int n) {
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++)
+            names[i] = "name" + i + ",";
+        return names;
+    }
+
+    private static String concat(String[] names) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : names)
+            sb.append(name);
+        return sb.toString();
+    }
+
+    @Test
+    public void framesLoopIterations() throws Throwable {
+        TransformingClassLoader loader = loader(true);
+        assertEquals(2, TransformingClassLoader.invocations(loader.method(Loops.class, "sizes"), RewriteTable.MEMORYSTACK, "getPointer"));
+        // The memory of all iterations would exceed the default stack size of 64 KiB
+        assertEquals(100 * 256, loader.invoke(Loops.class, "sizes", 100));
+        assertEquals(0, loader.leaked(Loops.class, "sizes", 100));
+    }
+
+    @Test
+    public void keepsLoopFramesByDefault() throws Throwable {
+        TransformingClassLoader loader = loader(false);
+        assertEquals(1, TransformingClassLoader.invocations(loader.method(Loops.class, "sizes"), RewriteTable.MEMORYSTACK, "getPointer"));
+        assertEquals(0, loader.leaked(Loops.class, "sizes", 10));
+    }
+
+    @Test
+    public void keepsAddressesPutIntoPointerBuffer() throws Throwable {
+        TransformingClassLoader loader = loader(true);
+        assertEquals(1, TransformingClassLoader.invocations(loader.method(Loops.class, "pointers"), RewriteTable.MEMORYSTACK, "getPointer"));
+        String[] names = names(20);
+        assertEquals(concat(names), loader.invoke(Loops.class, "pointers", (Object) names));
+        assertEquals(0, loader.leaked(Loops.class, "pointers", (Object) names));
+    }
+
+    @Test
+    public void keepsAddressesSetInStructs() throws Throwable {
+        TransformingClassLoader loader = loader(true);
+        assertEquals(1, TransformingClassLoader.invocations(loader.method(Loops.class, "structs"), RewriteTable.MEMORYSTACK, "getPointer"));
+        String[] names = names(20);
+        assertEquals(concat(names), loader.invoke(Loops.class, "structs", (Object) names));
+        assertEquals(0, loader.leaked(Loops.class, "structs", (Object) names));
+    }
+
+}
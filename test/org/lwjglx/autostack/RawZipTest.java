@@ -0,0 +1,98 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests of copying zip entries with {@link RawZip}.
+ *
+ * @author Kai Burjack
+ */
+public class RawZipTest {
+
+    private static File zip(String... names) throws IOException {
+        File file = File.createTempFile("autostack", ".jar");
+        file.deleteOnExit();
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (String name : names) {
+                out.putNextEntry(new ZipEntry(name));
+                out.write(name.getBytes("UTF-8"));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void copiesEntries() throws IOException {
+        File in = zip("a.txt", "b.txt");
+        File out = File.createTempFile("autostack", ".jar");
+        out.deleteOnExit();
+        RawZip.Reader reader = RawZip.Reader.open(in);
+        try {
+            RawZip.Writer writer = new RawZip.Writer(out, false, 9);
+            writer.copy(reader, reader.getEntries().get(0));
+            writer.write(reader.getEntries().get(1), "c".getBytes("UTF-8"));
+            writer.close();
+        } finally {
+            reader.close();
+        }
+        JarFile jar = new JarFile(out);
+        try {
+            assertEquals(2, jar.size());
+            assertEquals(1, jar.getEntry("b.txt").getSize());
+        } finally {
+            jar.close();
+        }
+    }
+
+    @Test
+    public void abortDeletesIncompleteZip() throws IOException {
+        File in = zip("a.txt", "b.txt");
+        File out = File.createTempFile("autostack", ".jar");
+        RawZip.Reader reader = RawZip.Reader.open(in);
+        try {
+            RawZip.Writer writer = new RawZip.Writer(out, false, 9);
+            writer.copy(reader, reader.getEntries().get(0));
+            // Such as a failing transformation of the next entry
+            writer.abort();
+        } finally {
+            reader.close();
+        }
+        assertFalse(out.exists());
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import static org.junit.Assert.*;
+import static org.lwjgl.system.MemoryStack.*;
+
+import java.nio.IntBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests of keeping only the returned allocation of methods using a new stack frame.
+ *
+ * @author Kai Burjack
+ */
+public class ReturnedAllocationTest {
+
+    static class Returned {
+        @UseNewStack
+        static IntBuffer sum(int n) {
+            IntBuffer result = stackMallocInt(4);
+            IntBuffer scratch = stackMallocInt(n);
+            int sum = 0;
+            for (int i = 0; i < n; i++) {
+                scratch.put(i, i);
+                sum += scratch.get(i);
+            }
+            result.put(0, sum);
+            return result;
+        }
+
+        static int loop(int iterations) {
+            int total = 0;
+            for (int i = 0; i < iterations; i++)
+                total += sum(256).get(0);
+            return total;
+        }
+    }
+
+    @Test
+    public void keepsOnlyReturnedAllocation() throws Throwable {
+        TransformingClassLoader loader = new TransformingClassLoader(TransformingClassLoader.transformer(), Returned.class);
+        assertEquals(4 * 4, loader.leaked(Returned.class, "sum", 256));
+        assertEquals(6, ((IntBuffer) loader.invoke(Returned.class, "sum", 4)).get(0));
+    }
+
+    @Test
+    public void keepsCallerStackSmallInLoops() throws Throwable {
+        TransformingClassLoader loader = new TransformingClassLoader(TransformingClassLoader.transformer(), Returned.class);
+        // The scratch memory of all iterations would exceed the default stack size of 64 KiB
+        assertEquals(1000 * (255 * 256 / 2), loader.invoke(Returned.class, "loop", 1000));
+        assertEquals(0, loader.leaked(Returned.class, "loop", 1000));
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import static org.junit.Assert.*;
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import org.junit.Test;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.jni.JNINativeMethod;
+
+/**
+ * Tests of reusing the stack memory of allocations which are not used anymore with
+ * {@link Transformer#setReuseStack(boolean)}.
+ *
+ * @author Kai Burjack
+ */
+public class ReuseStackTest {
+
+    static class Allocations {
+        static int reused() {
+            int sum = stackMallocInt(1).put(0, 1).get(0);
+            return sum + stackMallocInt(1).put(0, 2).get(0);
+        }
+
+        static int pointers() {
+            PointerBuffer pp = stackMallocPointer(1);
+            IntBuffer a = stackMallocInt(1);
+            a.put(0, 42);
+            pp.put(0, a);
+            IntBuffer b = stackMallocInt(1);
+            b.put(0, 7);
+            return memGetInt(pp.get(0));
+        }
+
+        static int pointersOf(PointerBuffer pp) {
+            IntBuffer a = stackMallocInt(1);
+            a.put(0, 42);
+            pp.put(0, a);
+            IntBuffer b = stackMallocInt(1);
+            b.put(0, 7);
+            return memGetInt(pp.get(0));
+        }
+
+        static String struct(JNINativeMethod method) {
+            ByteBuffer a = stackMalloc(2);
+            a.put(0, (byte) 'a').put(1, (byte) 0);
+            method.name(a);
+            ByteBuffer b = stackMalloc(2);
+            b.put(0, (byte) 'b').put(1, (byte) 0);
+            return method.nameString();
+        }
+
+        static String structOf(JNINativeMethod method) {
+            method.name(stackUTF8("name"));
+            stackUTF8("other");
+            return method.nameString();
+        }
+    }
+
+    private static TransformingClassLoader loader(boolean reuseStack, boolean coalesce) {
+        Transformer transformer = TransformingClassLoader.transformer();
+        transformer.setReuseStack(reuseStack);
+        transformer.setCoalesce(coalesce);
+        return new TransformingClassLoader(transformer, Allocations.class);
+    }
+
+    private static void assertKeepsStoredMemory(TransformingClassLoader loader) throws Throwable {
+        assertEquals(42, loader.invoke(Allocations.class, "pointers"));
+        assertEquals(0, loader.leaked(Allocations.class, "pointers"));
+        try (MemoryStack stack = stackPush()) {
+            PointerBuffer pp = stack.mallocPointer(1);
+            assertEquals(42, loader.invoke(Allocations.class, "pointersOf", pp));
+            JNINativeMethod method = JNINativeMethod.mallocStack(stack);
+            assertEquals("a", loader.invoke(Allocations.class, "struct", method));
+            assertEquals("name", loader.invoke(Allocations.class, "structOf", method));
+            assertEquals(0, loader.leaked(Allocations.class, "structOf", method));
+        }
+    }
+
+    @Test
+    public void resetsFrame() throws Throwable {
+        TransformingClassLoader loader = loader(true, false);
+        // Once more than on return and in the handler
+        assertEquals(3, TransformingClassLoader.invocations(loader.method(Allocations.class, "reused"), RewriteTable.MEMORYSTACK, "setPointer"));
+        assertEquals(3, loader.invoke(Allocations.class, "reused"));
+        assertEquals(0, loader.leaked(Allocations.class, "reused"));
+    }
+
+    @Test
+    public void sharesSlices() throws Throwable {
+        TransformingClassLoader loader = loader(true, true);
+        assertEquals(3, loader.invoke(Allocations.class, "reused"));
+        assertEquals(0, loader.leaked(Allocations.class, "reused"));
+    }
+
+    @Test
+    public void keepsFramesByDefault() throws Throwable {
+        TransformingClassLoader loader = loader(false, false);
+        assertEquals(2, TransformingClassLoader.invocations(loader.method(Allocations.class, "reused"), RewriteTable.MEMORYSTACK, "setPointer"));
+        assertKeepsStoredMemory(loader);
+    }
+
+    @Test
+    public void keepsMemoryStoredBySettersInFrame() throws Throwable {
+        assertKeepsStoredMemory(loader(true, false));
+    }
+
+    @Test
+    public void keepsMemoryStoredBySettersInSlices() throws Throwable {
+        assertKeepsStoredMemory(loader(true, true));
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.jni.JNINativeMethod;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Tests of {@link RewriteTable} against the LWJGL version on the class path.
+ *
+ * @author Kai Burjack
+ */
+public class RewriteTableTest {
+
+    private final RewriteTable table = new RewriteTable(RewriteTableTest.class.getClassLoader());
+
+    /**
+     * Return the signatures of all static methods of the given class which allocate on the thread's stack but have no
+     * rewrite, or whose rewrite does not exist.
+     */
+    private List<String> unrewritten(Class<?> clazz) throws ClassNotFoundException {
+        List<String> missing = new ArrayList<String>();
+        String owner = Type.getInternalName(clazz);
+        for (Method m : clazz.getDeclaredMethods()) {
+            if (!Modifier.isStatic(m.getModifiers()) || !Modifier.isPublic(m.getModifiers()) || m.isSynthetic()
+                    || !RewriteTable.isStackMethod(owner, m.getName()) || m.getName().equals("stackGet"))
+                continue;
+            String desc = Type.getMethodDescriptor(m);
+            // Already the variant taking the stack
+            if (desc.contains(Type.getDescriptor(MemoryStack.class) + ")"))
+                continue;
+            RewriteTable.Rewrite rewrite = table.get(owner, m.getName(), desc);
+            if (rewrite == null || !exists(rewrite))
+                missing.add(m.getName() + desc);
+        }
+        return missing;
+    }
+
+    private static boolean exists(RewriteTable.Rewrite rewrite) throws ClassNotFoundException {
+        Class<?> owner = Class.forName(rewrite.owner.replace('/', '.'));
+        for (Method m : owner.getMethods())
+            if (m.getName().equals(rewrite.name) && Type.getMethodDescriptor(m).equals(rewrite.desc)
+                    && Modifier.isStatic(m.getModifiers()) == (rewrite.opcode == Opcodes.INVOKESTATIC))
+                return true;
+        return false;
+    }
+
+    @Test
+    public void rewritesAllMemoryStackAllocations() throws ClassNotFoundException {
+        assertEquals(new ArrayList<String>(), unrewritten(MemoryStack.class));
+    }
+
+    @Test
+    public void rewritesStructAllocations() throws ClassNotFoundException {
+        assertEquals(new ArrayList<String>(), unrewritten(JNINativeMethod.class));
+        assertNotNull(table.get(Type.getInternalName(JNINativeMethod.class), "mallocStack", "()" + Type.getDescriptor(JNINativeMethod.class)));
+    }
+
+    @Test
+    public void doesNotRewriteUnknownClasses() {
+        assertNull(table.get("org/lwjgl/does/not/Exist", "mallocStack", "()Lorg/lwjgl/does/not/Exist;"));
+    }
+
+    @Test
+    public void digestsLwjglVersion() {
+        RewriteTable withoutLwjgl = new RewriteTable(new ClassLoader(null) {
+        });
+        assertTrue(table.isMemoryStackFound());
+        assertFalse(withoutLwjgl.isMemoryStackFound());
+        assertTrue(Arrays.equals(table.digest(), new RewriteTable(RewriteTableTest.class.getClassLoader()).digest()));
+        assertFalse(Arrays.equals(table.digest(), withoutLwjgl.digest()));
+    }
+
+    @Test
+    public void resolvesTablesViaClassLoader() throws Exception {
+        Transformer transformer = new Transformer(Collections.<String>emptyList());
+        ClassLoader parent = RewriteTableTest.class.getClassLoader();
+        URLClassLoader child = new URLClassLoader(new URL[0], parent);
+        try {
+            // Both find the same MemoryStack
+            assertSame(transformer.rewriteTable(parent), transformer.rewriteTable(child));
+        } finally {
+            child.close();
+        }
+        RewriteTable withoutLwjgl = transformer.rewriteTable(new ClassLoader(null) {
+        });
+        assertNotSame(transformer.rewriteTable(parent), withoutLwjgl);
+        assertNull(withoutLwjgl.get(RewriteTable.MEMORYSTACK, "stackMallocInt", "(I)Ljava/nio/IntBuffer;"));
+        assertNotNull(transformer.rewriteTable(parent).get(RewriteTable.MEMORYSTACK, "stackMallocInt", "(I)Ljava/nio/IntBuffer;"));
+        transformer.setRewriteTable(table);
+        assertSame(table, transformer.rewriteTable(null));
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import static org.junit.Assert.*;
+import static org.lwjgl.system.MemoryStack.*;
+
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.lwjgl.system.MemoryStack;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Tests of passing the stack as additional parameter with {@link Transformer#setStackAsParameter(boolean)}.
+ *
+ * @author Kai Burjack
+ */
+public class StackParamTest {
+
+    static final class FinalWithConstructor {
+        final int capacity;
+
+        FinalWithConstructor(int n) {
+            capacity = stackMallocInt(n).capacity();
+        }
+
+        static int run(int n) {
+            return new FinalWithConstructor(n).capacity + stackMallocInt(1).capacity();
+        }
+    }
+
+    static class StaticInitializer {
+        static final int CAPACITY;
+        static {
+            CAPACITY = stackMallocInt(3).capacity();
+        }
+
+        static int run() {
+            return CAPACITY + stackMallocInt(1).capacity();
+        }
+    }
+
+    static class DeclaredVariant {
+        static int alloc(int n) {
+            return stackMallocInt(n).capacity();
+        }
+
+        static int alloc(int n, MemoryStack stack) {
+            return stack.mallocInt(n).capacity() + 1;
+        }
+
+        static int run(int n) {
+            return alloc(n) + stackMallocInt(1).capacity();
+        }
+    }
+
+    static class OtherClass {
+        static int run(int n) {
+            return DeclaredVariant.alloc(n) + new FinalWithConstructor(n).capacity + stackMallocInt(1).capacity();
+        }
+    }
+
+    private static TransformingClassLoader loader(Class<?> sample) {
+        Transformer transformer = TransformingClassLoader.transformer();
+        transformer.setStackAsParameter(true);
+        return new TransformingClassLoader(transformer, sample);
+    }
+
+    private static int count(ClassNode cn, String name, String desc) {
+        int count = 0;
+        for (MethodNode mn : cn.methods)
+            if (mn.name.equals(name) && mn.desc.equals(desc))
+                count++;
+        return count;
+    }
+
+    @Test
+    public void keepsConstructorsOfFinalClasses() throws Throwable {
+        TransformingClassLoader loader = loader(FinalWithConstructor.class);
+        assertEquals(5, loader.invoke(FinalWithConstructor.class, "run", 4));
+        assertEquals(0, loader.leaked(FinalWithConstructor.class, "run", 4));
+        assertEquals(0, count(loader.classNode(FinalWithConstructor.class), "<init>", "(IL" + RewriteTable.MEMORYSTACK + ";)V"));
+    }
+
+    @Test
+    public void keepsStaticInitializers() throws Throwable {
+        TransformingClassLoader loader = loader(StaticInitializer.class);
+        assertEquals(0, loader.leaked(StaticInitializer.class, "run"));
+        assertEquals(4, loader.invoke(StaticInitializer.class, "run"));
+        assertEquals(0, count(loader.classNode(StaticInitializer.class), "<clinit>", "(L" + RewriteTable.MEMORYSTACK + ";)V"));
+    }
+
+    @Test
+    public void keepsDeclaredStackParamVariants() throws Throwable {
+        TransformingClassLoader loader = loader(DeclaredVariant.class);
+        assertEquals(5, loader.invoke(DeclaredVariant.class, "run", 4));
+        assertEquals(0, loader.leaked(DeclaredVariant.class, "run", 4));
+        assertEquals(1, count(loader.classNode(DeclaredVariant.class), "alloc", "(IL" + RewriteTable.MEMORYSTACK + ";)I"));
+    }
+
+    private static Set<String> collectStackParamMethods(Transformer transformer, Class<?>... samples) throws Exception {
+        Set<String> methods = new HashSet<String>();
+        for (Class<?> sample : samples) {
+            String internalName = sample.getName().replace('.', '/');
+            InputStream is = StackParamTest.class.getClassLoader().getResourceAsStream(internalName + ".class");
+            try {
+                transformer.collectStackParamMethods(internalName, new ClassReader(is).b, methods);
+            } finally {
+                is.close();
+            }
+        }
+        return methods;
+    }
+
+    @Test
+    public void collectsOnlyExactTargetsWithoutDeclaredVariants() throws Throwable {
+        Transformer transformer = TransformingClassLoader.transformer();
+        transformer.setStackAsParameter(true);
+        Set<String> methods = collectStackParamMethods(transformer, FinalWithConstructor.class, StaticInitializer.class, DeclaredVariant.class, OtherClass.class);
+        String prefix = StackParamTest.class.getName().replace('.', '/') + "$";
+        assertTrue(methods.contains(prefix + "FinalWithConstructor.run(I)I"));
+        assertFalse(methods.contains(prefix + "FinalWithConstructor.<init>(I)V"));
+        assertFalse(methods.contains(prefix + "StaticInitializer.<clinit>()V"));
+        assertFalse(methods.contains(prefix + "DeclaredVariant.alloc(I)I"));
+        assertTrue(methods.contains(prefix + "DeclaredVariant.run(I)I"));
+
+        transformer.setStackParamMethods(methods);
+        TransformingClassLoader loader = new TransformingClassLoader(transformer, OtherClass.class, FinalWithConstructor.class, DeclaredVariant.class);
+        assertEquals(9, loader.invoke(OtherClass.class, "run", 4));
+        assertEquals(0, loader.leaked(OtherClass.class, "run", 4));
+    }
+
+}
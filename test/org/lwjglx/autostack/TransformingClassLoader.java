@@ -0,0 +1,181 @@
+/*
+ * (C) Copyright 2016 Kai Burjack
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+ */
+package org.lwjglx.autostack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.lwjgl.system.MemoryStack;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Loads sample classes of the tests transformed by a {@link Transformer}, and gives access to their transformed bytecode.
+ * <p>
+ * All other classes, including LWJGL, are loaded by the parent class loader, so that the tests see the same
+ * {@link MemoryStack} as the transformed classes.
+ *
+ * @author Kai Burjack
+ */
+class TransformingClassLoader extends ClassLoader {
+
+    private final Transformer transformer;
+    private final Map<String, byte[]> transformed = new HashMap<String, byte[]>();
+
+    /**
+     * Create a new {@link TransformingClassLoader} transforming the given sample classes and their nested classes.
+     */
+    TransformingClassLoader(Transformer transformer, Class<?>... samples) {
+        super(TransformingClassLoader.class.getClassLoader());
+        this.transformer = transformer;
+        for (Class<?> sample : samples)
+            transformed.put(sample.getName(), null);
+    }
+
+    /**
+     * Create a {@link Transformer} for the package of the samples.
+     */
+    static Transformer transformer() {
+        return new Transformer(java.util.Collections.singletonList(TransformingClassLoader.class.getPackage().getName()));
+    }
+
+    protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!isSample(name))
+            return super.loadClass(name, resolve);
+        Class<?> c = findLoadedClass(name);
+        if (c == null) {
+            String internalName = name.replace('.', '/');
+            byte[] bytes = read(internalName);
+            byte[] t = transformer.transform(this, internalName, null, null, bytes);
+            if (t != null)
+                bytes = t;
+            transformed.put(name, bytes);
+            c = defineClass(name, bytes, 0, bytes.length);
+        }
+        if (resolve)
+            resolveClass(c);
+        return c;
+    }
+
+    private boolean isSample(String name) {
+        int nested = name.indexOf('$', name.lastIndexOf('.') + 1);
+        return transformed.containsKey(name) || nested != -1 && isSample(name.substring(0, name.lastIndexOf('$')));
+    }
+
+    private byte[] read(String internalName) throws ClassNotFoundException {
+        InputStream is = getParent().getResourceAsStream(internalName + ".class");
+        if (is == null)
+            throw new ClassNotFoundException(internalName);
+        try {
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = is.read(buffer)) != -1)
+                    baos.write(buffer, 0, read);
+                return baos.toByteArray();
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            throw new ClassNotFoundException(internalName, e);
+        }
+    }
+
+    /**
+     * Invoke the given static method of the transformed sample class.
+     */
+    Object invoke(Class<?> sample, String name, Object... args) throws Throwable {
+        Class<?> c = loadClass(sample.getName());
+        for (Method m : c.getDeclaredMethods()) {
+            if (m.getName().equals(name) && m.getParameterTypes().length == args.length) {
+                m.setAccessible(true);
+                try {
+                    return m.invoke(null, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        }
+        throw new NoSuchMethodException(sample.getName() + "." + name);
+    }
+
+    /**
+     * Invoke the given static method of the transformed sample class and return by how many bytes the stack pointer of
+     * the thread's stack changed.
+     */
+    int leaked(Class<?> sample, String name, Object... args) throws Throwable {
+        MemoryStack stack = MemoryStack.stackGet();
+        int pointer = stack.getPointer();
+        try {
+            invoke(sample, name, args);
+            return pointer - stack.getPointer();
+        } finally {
+            stack.setPointer(pointer);
+        }
+    }
+
+    /**
+     * Return the transformed sample class, loading it if necessary.
+     */
+    ClassNode classNode(Class<?> sample) throws ClassNotFoundException {
+        loadClass(sample.getName());
+        ClassNode cn = new ClassNode();
+        new ClassReader(transformed.get(sample.getName())).accept(cn, 0);
+        return cn;
+    }
+
+    /**
+     * Return the transformed method of the given sample class, loading the class if necessary.
+     */
+    MethodNode method(Class<?> sample, String name) throws ClassNotFoundException {
+        for (MethodNode mn : classNode(sample).methods)
+            if (mn.name.equals(name))
+                return mn;
+        throw new AssertionError("No method " + name + " in " + sample.getName());
+    }
+
+    /**
+     * Count the invocations of the given method in the given method.
+     */
+    static int invocations(MethodNode mn, String owner, String name) {
+        int count = 0;
+        for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (!(insn instanceof MethodInsnNode))
+                continue;
+            MethodInsnNode min = (MethodInsnNode) insn;
+            if (min.owner.equals(owner) && min.name.equals(name))
+                count++;
+        }
+        return count;
+    }
+
+}